@@ -0,0 +1,44 @@
+package com.example.iotsystem;
+
+import akka.actor.ActorRef;
+import akka.testkit.javadsl.TestKit;
+
+import java.time.Duration;
+
+
+/**
+ * naming and registration of the devices the benchmarks run against
+ */
+final class BenchmarkFleet {
+
+    static final int REGISTRATION_WINDOW = 1000;
+
+    private BenchmarkFleet() {}
+
+    static String groupId(int group) {
+        return "group" + group;
+    }
+
+    static String deviceId(int device) {
+        return "device" + device;
+    }
+
+    /**
+     * tracks every device of every group, keeping a bounded number of registrations in flight
+     */
+    static void register(ActorRef manager, TestKit probe, int groups, int devicesPerGroup) {
+        int inFlight = 0;
+        for (int group = 0; group < groups; group++) {
+            for (int device = 0; device < devicesPerGroup; device++) {
+                manager.tell(new DeviceManager.RequestTrackDevice(groupId(group), deviceId(device)), probe.getRef());
+                if (++inFlight == REGISTRATION_WINDOW) {
+                    probe.receiveN(inFlight, Duration.ofSeconds(60));
+                    inFlight = 0;
+                }
+            }
+        }
+        if (inFlight > 0) {
+            probe.receiveN(inFlight, Duration.ofSeconds(60));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.iotsystem;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.TestActorRef;
+import akka.testkit.javadsl.TestKit;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * allocation and cost of a single message inside a Device, without mailbox or thread hops
+ *
+ * TestActorRef runs the receive on the calling thread, and the messages are created once,
+ * so with "-prof gc" the gc.alloc.rate.norm is what the device itself allocates per message
+ * (plus the reply and its delivery to the sink, which is the same before and after a change)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeviceBenchmark {
+
+    ActorSystem system;
+    TestActorRef<Device> device;
+    TestActorRef<Sink> sink;
+
+    final Device.RecordTemperature record = new Device.RecordTemperature(1L, 21.5);
+    final Device.RecordTemperatureNoAck recordNoAck = new Device.RecordTemperatureNoAck(1L, 21.5);
+    final Device.ReadTemperature read = new Device.ReadTemperature(1L);
+
+    /**
+     * swallows the replies of the device
+     */
+    static final class Sink extends AbstractActor {
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder().matchAny(m -> {}).build();
+        }
+    }
+
+    @Setup
+    public void setup() {
+        system = ActorSystem.create("device-benchmark");
+        device = TestActorRef.create(system, Device.props("group", "device"));
+        sink = TestActorRef.create(system, Props.create(Sink.class, Sink::new));
+    }
+
+    @TearDown
+    public void tearDown() {
+        TestKit.shutdownActorSystem(system);
+    }
+
+    @Benchmark
+    public void recordTemperature() {
+        device.receive(record, sink);
+    }
+
+    @Benchmark
+    public void recordTemperatureNoAck() {
+        device.receive(recordNoAck, sink);
+    }
+
+    @Benchmark
+    public void readTemperature() {
+        device.receive(read, sink);
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.iotsystem;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * readings per second recorded through DeviceManager -> DeviceGroup -> Device
+ *
+ * every invocation keeps WINDOW batches in flight and waits for all their acknowledgements,
+ * the score is in batches per second and the "readings" counter in readings per second
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class IngestionBenchmark {
+
+    static final int WINDOW = 100;
+
+    @Param({"1", "10", "100"})
+    int groups;
+
+    @Param({"10", "1000"})
+    int devicesPerGroup;
+
+    @Param({"1", "100"})
+    int batchSize;
+
+    // 1 is a single DeviceManager, above it the managers sit behind DeviceManager.shardedProps
+    @Param({"1", "4"})
+    int shards;
+
+    ActorSystem system;
+    ActorRef manager;
+    TestKit producer;
+    DeviceManager.RecordTemperatureBatch[] batches;
+
+    @Setup
+    public void setup() {
+        system = ActorSystem.create("ingestion-benchmark");
+        manager = system.actorOf(
+                shards == 1 ? DeviceManager.props() : DeviceManager.shardedProps(shards, IotSettings.defaults()),
+                "manager");
+        producer = new TestKit(system);
+
+        BenchmarkFleet.register(manager, producer, groups, devicesPerGroup);
+
+        //
+        // the readings walk over every device of the fleet, batch after batch
+        //
+        int fleet = groups * devicesPerGroup;
+        batches = new DeviceManager.RecordTemperatureBatch[WINDOW];
+        long requestId = 0L;
+        for (int b = 0; b < WINDOW; b++) {
+            List<DeviceManager.Reading> readings = new ArrayList<>(batchSize);
+            for (int r = 0; r < batchSize; r++, requestId++) {
+                int device = (int) (requestId % fleet);
+                readings.add(new DeviceManager.Reading(
+                        BenchmarkFleet.groupId(device / devicesPerGroup),
+                        BenchmarkFleet.deviceId(device % devicesPerGroup),
+                        requestId,
+                        20.0 + device % 10));
+            }
+            batches[b] = new DeviceManager.RecordTemperatureBatch(b, readings);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        TestKit.shutdownActorSystem(system);
+    }
+
+    /**
+     * JMH reports it next to the score, as readings per second
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Readings {
+        public long readings;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WINDOW)
+    public Object recordBatches(Readings counter) {
+        for (DeviceManager.RecordTemperatureBatch batch : batches) {
+            manager.tell(batch, producer.getRef());
+        }
+        counter.readings += (long) WINDOW * batchSize;
+        return producer.receiveN(WINDOW, Duration.ofSeconds(30));
+    }
+}
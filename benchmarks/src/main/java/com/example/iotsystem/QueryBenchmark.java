@@ -0,0 +1,64 @@
+package com.example.iotsystem;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * latency of RequestAllTemperatures on a single group where every device has a reading
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class QueryBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    int devices;
+
+    ActorSystem system;
+    ActorRef manager;
+    ActorRef group;
+    TestKit requester;
+    long requestId = 0L;
+
+    @Setup
+    public void setup() {
+        system = ActorSystem.create("query-benchmark");
+        manager = system.actorOf(DeviceManager.props(), "manager");
+        requester = new TestKit(system);
+
+        BenchmarkFleet.register(manager, requester, 1, devices);
+
+        List<DeviceManager.Reading> readings = new ArrayList<>(devices);
+        for (int device = 0; device < devices; device++) {
+            readings.add(new DeviceManager.Reading(
+                    BenchmarkFleet.groupId(0), BenchmarkFleet.deviceId(device), device, 20.0));
+        }
+        manager.tell(new DeviceManager.RecordTemperatureBatch(0L, readings), requester.getRef());
+        requester.expectMsgClass(Duration.ofSeconds(60), DeviceManager.TemperatureBatchRecorded.class);
+
+        // the group acknowledged the batch, so it is the last sender
+        group = requester.getLastSender();
+    }
+
+    @TearDown
+    public void tearDown() {
+        TestKit.shutdownActorSystem(system);
+    }
+
+    @Benchmark
+    public DeviceGroup.ReplyAllTemperatures requestAllTemperatures() {
+        group.tell(new DeviceGroup.RequestAllTemperatures(requestId++), requester.getRef());
+        return requester.expectMsgClass(Duration.ofSeconds(30), DeviceGroup.ReplyAllTemperatures.class);
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.iotsystem;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.PoisonPill;
+import akka.testkit.javadsl.TestKit;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+
+/**
+ * time to recover groups, devices and readings from a DeviceJournal directory
+ *
+ * the directory holds one registration and one reading for every device of the fleet, either
+ * all in the journal, or all in a snapshot; recoverState only reads it, restartManager also
+ * starts a DeviceManager with dense groups on it (a million device actors do not fit a default
+ * heap) and waits until every group answers RequestAllTemperatures
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RecoveryBenchmark {
+
+    @Param({"1000"})
+    int groups;
+
+    @Param({"1000"})
+    int devicesPerGroup;
+
+    @Param({"journal", "snapshot"})
+    String written;
+
+    ActorSystem system;
+    TestKit probe;
+    Path directory;
+    IotSettings settings;
+    ActorRef manager;
+
+    @Setup
+    public void setup() throws IOException {
+        system = ActorSystem.create("recovery-benchmark");
+        probe = new TestKit(system);
+        directory = Files.createTempDirectory("recovery-benchmark");
+
+        // a snapshot is taken right after the last record when every record fits before snapshot-after
+        long records = 2L * groups * devicesPerGroup;
+        settings = IotSettings.defaults().withJournal(
+                directory.toString(),
+                FiniteDuration.create(100, TimeUnit.MILLISECONDS),
+                written.equals("snapshot") ? records : Long.MAX_VALUE);
+
+        ActorRef journal = system.actorOf(DeviceJournal.props(directory, DeviceJournal.recover(directory), settings));
+        for (int group = 0; group < groups; group++) {
+            for (int device = 0; device < devicesPerGroup; device++) {
+                journal.tell(new DeviceJournal.Registered(BenchmarkFleet.groupId(group), BenchmarkFleet.deviceId(device)), ActorRef.noSender());
+                journal.tell(new DeviceJournal.Recorded(BenchmarkFleet.groupId(group), BenchmarkFleet.deviceId(device), device), ActorRef.noSender());
+            }
+        }
+        probe.watch(journal);
+        journal.tell(PoisonPill.getInstance(), ActorRef.noSender());
+        probe.expectTerminated(Duration.ofMinutes(5), journal);
+    }
+
+    @TearDown(Level.Invocation)
+    public void stopManager() {
+        if (manager != null) {
+            probe.watch(manager);
+            manager.tell(PoisonPill.getInstance(), ActorRef.noSender());
+            probe.expectTerminated(Duration.ofMinutes(1), manager);
+            manager = null;
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        TestKit.shutdownActorSystem(system);
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Map<String, DeviceTable> recoverState() throws IOException {
+        return DeviceJournal.recover(directory);
+    }
+
+    @Benchmark
+    public Object restartManager() {
+        manager = system.actorOf(DeviceManager.props(settings.withDenseGroups(true)));
+        manager.tell(new DeviceManager.RequestGroupActorList(0L), probe.getRef());
+        DeviceManager.ReplyGroupActorList groupList =
+                probe.expectMsgClass(Duration.ofMinutes(1), DeviceManager.ReplyGroupActorList.class);
+        for (ActorRef group : groupList.actors) {
+            group.tell(new DeviceGroup.RequestAllTemperatures(0L), probe.getRef());
+        }
+        return probe.receiveN(groupList.actors.size(), Duration.ofMinutes(5));
+    }
+}
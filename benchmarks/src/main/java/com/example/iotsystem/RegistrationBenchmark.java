@@ -0,0 +1,69 @@
+package com.example.iotsystem;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.PoisonPill;
+import akka.testkit.javadsl.TestKit;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * new devices registered per second through DeviceManager
+ *
+ * every invocation tracks WINDOW devices never seen before, spread over the groups,
+ * and every iteration starts again from an empty DeviceManager
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RegistrationBenchmark {
+
+    static final int WINDOW = 1000;
+
+    @Param({"1", "100"})
+    int groups;
+
+    ActorSystem system;
+    ActorRef manager;
+    TestKit registrar;
+    int nextDevice;
+
+    @Setup
+    public void setup() {
+        system = ActorSystem.create("registration-benchmark");
+        registrar = new TestKit(system);
+    }
+
+    @Setup(Level.Iteration)
+    public void startManager() {
+        if (manager != null) {
+            manager.tell(PoisonPill.getInstance(), ActorRef.noSender());
+        }
+        manager = system.actorOf(DeviceManager.props());
+        nextDevice = 0;
+    }
+
+    @TearDown
+    public void tearDown() {
+        TestKit.shutdownActorSystem(system);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WINDOW)
+    public Object registerDevices() {
+        for (int i = 0; i < WINDOW; i++, nextDevice++) {
+            manager.tell(
+                    new DeviceManager.RequestTrackDevice(
+                            BenchmarkFleet.groupId(nextDevice % groups),
+                            BenchmarkFleet.deviceId(nextDevice)),
+                    registrar.getRef());
+        }
+        return registrar.receiveN(WINDOW, Duration.ofSeconds(60));
+    }
+}
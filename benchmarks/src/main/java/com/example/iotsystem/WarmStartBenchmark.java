@@ -0,0 +1,81 @@
+package com.example.iotsystem;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.PoisonPill;
+import akka.testkit.javadsl.TestKit;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * time to register a whole known inventory with an empty DeviceManager, one RequestTrackDevice
+ * per device (an actor each) against DeviceInventory (one BulkTrackDevices per group, no actor)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WarmStartBenchmark {
+
+    @Param({"100"})
+    int groups;
+
+    @Param({"1000"})
+    int devicesPerGroup;
+
+    ActorSystem system;
+    TestKit probe;
+    Map<String, List<String>> inventory;
+    ActorRef manager;
+
+    @Setup
+    public void setup() {
+        system = ActorSystem.create("warm-start-benchmark");
+        probe = new TestKit(system);
+        inventory = new LinkedHashMap<>();
+        for (int group = 0; group < groups; group++) {
+            List<String> deviceIds = new ArrayList<>(devicesPerGroup);
+            for (int device = 0; device < devicesPerGroup; device++) {
+                deviceIds.add(BenchmarkFleet.deviceId(device));
+            }
+            inventory.put(BenchmarkFleet.groupId(group), deviceIds);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void startManager() {
+        manager = system.actorOf(DeviceManager.props());
+    }
+
+    @TearDown(Level.Invocation)
+    public void stopManager() {
+        probe.watch(manager);
+        manager.tell(PoisonPill.getInstance(), ActorRef.noSender());
+        probe.expectTerminated(Duration.ofMinutes(1), manager);
+    }
+
+    @TearDown
+    public void tearDown() {
+        TestKit.shutdownActorSystem(system);
+    }
+
+    @Benchmark
+    public void trackEveryDevice() {
+        BenchmarkFleet.register(manager, probe, groups, devicesPerGroup);
+    }
+
+    @Benchmark
+    public int trackInventory() throws InterruptedException, ExecutionException {
+        return DeviceInventory.register(manager, inventory, Duration.ofMinutes(1)).toCompletableFuture().get();
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.iotsystem;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.dispatch.ControlMessage;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import com.typesafe.config.Config;
+import scala.Option;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+
+/**
+ * a device mailbox holding at most "capacity" readings, whatever the producers send
+ *
+ * readings are RecordTemperature, RecordTemperatureNoAck, RecordTemperatures and a DeviceEnvelope
+ * carrying one of them; when the mailbox is full, "overflow-strategy" picks what is lost:
+ *
+ *   drop-newest  the arriving reading
+ *   drop-oldest  the oldest queued reading
+ *   coalesce     every queued reading, only the arriving one is kept since it supersedes them
+ *
+ * every other message is always queued, and control messages go ahead of everything else as
+ * in a control aware mailbox; dropped readings are never acknowledged and are counted in
+ * IngestionMetrics; coalesce is meant for Device actors, a dense group would lose the readings
+ * of its other devices
+ *
+ * configured like any mailbox:
+ *
+ *   my-mailbox {
+ *     mailbox-type = "com.example.iotsystem.BoundedDeviceMailbox"
+ *     capacity = 1000
+ *     overflow-strategy = drop-oldest
+ *   }
+ */
+public class BoundedDeviceMailbox implements MailboxType, ProducesMessageQueue<BoundedDeviceMailbox.DeviceMessageQueue> {
+
+    enum OverflowStrategy { DROP_NEWEST, DROP_OLDEST, COALESCE }
+
+    final int capacity;
+    final OverflowStrategy overflowStrategy;
+
+    public BoundedDeviceMailbox(ActorSystem.Settings settings, Config config) {
+        this.capacity = config.getInt("capacity");
+        this.overflowStrategy = OverflowStrategy.valueOf(
+                config.getString("overflow-strategy").toUpperCase().replace('-', '_'));
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive, but was " + capacity);
+        }
+    }
+
+    @Override
+    public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+        IngestionMetrics.Counter drops = system.isDefined()
+                ? IngestionMetrics.get(system.get()).register(owner.isDefined() ? owner.get() : null)
+                : null;
+        return new DeviceMessageQueue(capacity, overflowStrategy, drops);
+    }
+
+    static boolean isReading(Object message) {
+        if (message instanceof DeviceManager.DeviceEnvelope) {
+            message = ((DeviceManager.DeviceEnvelope) message).message;
+        }
+        return message instanceof Device.RecordTemperature
+                || message instanceof Device.RecordTemperatureNoAck
+                || message instanceof Device.RecordTemperatures;
+    }
+
+    /**
+     * enqueued by many producers and dequeued by the owner, so every access holds the lock of the queue;
+     * the critical sections are a few array operations, except a coalesce which is linear once per overflow
+     */
+    static final class DeviceMessageQueue implements MessageQueue {
+
+        final int capacity;
+        final OverflowStrategy overflowStrategy;
+        final IngestionMetrics.Counter drops;
+
+        final ArrayDeque<Envelope> controlMessages = new ArrayDeque<>();
+        final ArrayDeque<Envelope> messages = new ArrayDeque<>();
+        int readings = 0;
+
+        DeviceMessageQueue(int capacity, OverflowStrategy overflowStrategy, IngestionMetrics.Counter drops) {
+            this.capacity = capacity;
+            this.overflowStrategy = overflowStrategy;
+            this.drops = drops;
+        }
+
+        @Override
+        public synchronized void enqueue(ActorRef receiver, Envelope handle) {
+            Object message = handle.message();
+            if (message instanceof ControlMessage) {
+                controlMessages.addLast(handle);
+                return;
+            }
+            if (!isReading(message)) {
+                messages.addLast(handle);
+                return;
+            }
+
+            if (readings >= capacity) {
+                switch (overflowStrategy) {
+                    case DROP_NEWEST:
+                        dropped(1);
+                        return;
+                    case DROP_OLDEST:
+                        removeReadings(1);
+                        break;
+                    case COALESCE:
+                        removeReadings(readings);
+                        break;
+                }
+            }
+            messages.addLast(handle);
+            readings++;
+        }
+
+        private void removeReadings(int n) {
+            int removed = 0;
+            Iterator<Envelope> queued = messages.iterator();
+            while (removed < n && queued.hasNext()) {
+                if (isReading(queued.next().message())) {
+                    queued.remove();
+                    removed++;
+                }
+            }
+            readings -= removed;
+            dropped(removed);
+        }
+
+        private void dropped(int n) {
+            if (drops != null && n > 0) {
+                drops.add(n);
+            }
+        }
+
+        @Override
+        public synchronized Envelope dequeue() {
+            Envelope handle = controlMessages.pollFirst();
+            if (handle != null) {
+                return handle;
+            }
+            handle = messages.pollFirst();
+            if (handle != null && isReading(handle.message())) {
+                readings--;
+            }
+            return handle;
+        }
+
+        @Override
+        public synchronized int numberOfMessages() {
+            return controlMessages.size() + messages.size();
+        }
+
+        @Override
+        public synchronized boolean hasMessages() {
+            return !controlMessages.isEmpty() || !messages.isEmpty();
+        }
+
+        @Override
+        public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+            Envelope handle;
+            while ((handle = dequeue()) != null) {
+                deadLetters.enqueue(owner, handle);
+            }
+            if (drops != null) {
+                drops.unregister();
+            }
+        }
+    }
+}
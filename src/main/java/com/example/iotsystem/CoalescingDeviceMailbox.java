@@ -0,0 +1,119 @@
+package com.example.iotsystem;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import akka.dispatch.UnboundedMessageQueueSemantics;
+import com.typesafe.config.Config;
+import scala.Option;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * an unbounded Device mailbox where only the newest queued reading is processed
+ *
+ * a RecordTemperature or RecordTemperatureNoAck arriving while another one is still queued
+ * supersedes it: the older one is skipped when it reaches the head of the queue, so a burst of
+ * 500 readings costs the device a single one; the producer of a superseded RecordTemperature
+ * receives Device.TemperatureSuperseded instead of an acknowledgement, right when it is superseded
+ *
+ * RecordTemperatures and every other message are queued as in a default mailbox, and keep their
+ * order relative to the readings that are processed; the history of the device only keeps the
+ * readings that were processed
+ *
+ *   device-coalescing {
+ *     mailbox-type = "com.example.iotsystem.CoalescingDeviceMailbox"
+ *   }
+ */
+public class CoalescingDeviceMailbox implements MailboxType, ProducesMessageQueue<CoalescingDeviceMailbox.CoalescingMessageQueue> {
+
+    public CoalescingDeviceMailbox(ActorSystem.Settings settings, Config config) {
+    }
+
+    @Override
+    public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+        return new CoalescingMessageQueue(system.isDefined() ? system.get().deadLetters() : null);
+    }
+
+    static boolean isSingleReading(Object message) {
+        return message instanceof Device.RecordTemperature || message instanceof Device.RecordTemperatureNoAck;
+    }
+
+    /**
+     * lock free: the queue is a ConcurrentLinkedQueue, as in the default mailbox, and "latest" marks
+     * the only reading still worth processing
+     *
+     * a reading is skipped exactly when it was replaced in "latest" before its dequeue could clear it,
+     * and that replacement is also when its producer is told, so every RecordTemperature ends up
+     * either processed or superseded, never both
+     */
+    static final class CoalescingMessageQueue implements MessageQueue, UnboundedMessageQueueSemantics {
+
+        final ActorRef deadLetters;
+        final ConcurrentLinkedQueue<Envelope> queue = new ConcurrentLinkedQueue<>();
+        final AtomicReference<Envelope> latest = new AtomicReference<>();
+
+        CoalescingMessageQueue(ActorRef deadLetters) {
+            this.deadLetters = deadLetters;
+        }
+
+        @Override
+        public void enqueue(ActorRef receiver, Envelope handle) {
+            if (!isSingleReading(handle.message())) {
+                queue.add(handle);
+                return;
+            }
+
+            Envelope superseded = latest.getAndSet(handle);
+            queue.add(handle);
+            if (superseded != null && superseded.message() instanceof Device.RecordTemperature) {
+                ActorRef producer = superseded.sender();
+                if (producer != null && !producer.equals(deadLetters)) {
+                    producer.tell(new Device.TemperatureSuperseded(
+                            ((Device.RecordTemperature) superseded.message()).requestId, requestIdOf(handle)), receiver);
+                }
+            }
+        }
+
+        private static long requestIdOf(Envelope handle) {
+            Object message = handle.message();
+            return message instanceof Device.RecordTemperature
+                    ? ((Device.RecordTemperature) message).requestId
+                    : ((Device.RecordTemperatureNoAck) message).requestId;
+        }
+
+        @Override
+        public Envelope dequeue() {
+            Envelope handle;
+            while ((handle = queue.poll()) != null) {
+                if (!isSingleReading(handle.message()) || latest.compareAndSet(handle, null)) {
+                    return handle;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public int numberOfMessages() {
+            return queue.size();
+        }
+
+        @Override
+        public boolean hasMessages() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+            Envelope handle;
+            while ((handle = dequeue()) != null) {
+                deadLetters.enqueue(owner, handle);
+            }
+        }
+    }
+}
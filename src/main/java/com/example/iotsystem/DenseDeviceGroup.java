@@ -0,0 +1,390 @@
+package com.example.iotsystem;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.actor.Terminated;
+import akka.dispatch.ControlMessage;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+
+/**
+ * a DeviceGroup without device actors: the state of every device is a slot of a DeviceTable
+ * and the group itself handles the device messages, which arrive in a DeviceManager.DeviceEnvelope
+ *
+ * it speaks the protocol of DeviceGroup, but devices have no ActorRef of their own:
+ * DeviceRegistered and the device replies come from the group, and no reading history is kept
+ *
+ * a bare device message sent to the group, as to the ref that came with DeviceRegistered, is for
+ * the device its sender registered; a sender that registered several devices has to wrap them
+ * in a DeviceEnvelope, the bare ones are dropped with a warning
+ */
+public class DenseDeviceGroup extends AbstractActor {
+
+    private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+    final String groupId;
+    final IotSettings settings;
+    final DeviceTable table = new DeviceTable();
+
+    // the device each sender registered, SEVERAL_DEVICES once it registered another one
+    static final int SEVERAL_DEVICES = -1;
+    final Map<ActorRef, Integer> slotBySender = new HashMap<>();
+
+    // acknowledgements still owed by each slot when the AckPolicy does not ack every reading
+    final Device.AckPolicy ackPolicy;
+    int[] unackedReadings = new int[16];
+    long[] pendingAckRequestIds = new long[16];
+    ActorRef[] pendingAckReceivers = new ActorRef[16];
+    Cancellable ackTimer;
+
+    // LatestTemperatures slots indexed like the table, null unless the settings ask to publish
+    LatestTemperatures.Slot[] published;
+
+    // null unless the settings ask for rollups, fed with every reading since there are no device actors
+    final GroupRollups rollups;
+
+    // subscribers to the changes of every device, null until someone subscribes
+    TemperatureSubscriptions subscriptions;
+
+    // where registrations and changes are journaled, null unless the manager persists its state
+    final ActorRef journal;
+    final Map<String, Double> initialReadings;
+
+    public DenseDeviceGroup(String groupId, IotSettings settings) {
+        this(groupId, settings, null, Collections.emptyMap());
+    }
+
+    DenseDeviceGroup(String groupId, IotSettings settings, ActorRef journal, Map<String, Double> initialReadings) {
+        this.groupId = groupId;
+        this.journal = journal;
+        this.initialReadings = initialReadings;
+        settings = IotSettings.orFromConfig(settings, getContext().getSystem());
+        this.settings = settings;
+        this.ackPolicy = settings.ackPolicy();
+        this.published = settings.publishLatest() ? new LatestTemperatures.Slot[16] : null;
+        this.rollups = settings.rollupWindow().toMillis() > 0
+                ? new GroupRollups(settings.rollupWindow().toMillis(), settings.rollupRetention())
+                : null;
+    }
+
+    public static Props props(String groupId) {
+        return props(groupId, null);
+    }
+
+    /**
+     * runs on the device dispatcher and mailbox of the settings, since it does the work of the devices
+     */
+    public static Props props(String groupId, IotSettings settings) {
+        return props(groupId, settings, null, Collections.emptyMap());
+    }
+
+    /**
+     * a group journaling to "journal" when it is not null, starting with the devices and readings
+     * it had before a restart
+     */
+    static Props props(String groupId, IotSettings settings, ActorRef journal, Map<String, Double> initialReadings) {
+        Props props = Props.create(DenseDeviceGroup.class,
+                () -> new DenseDeviceGroup(groupId, settings, journal, initialReadings));
+        return settings != null
+                ? IotSettings.deploy(props, settings.deviceDispatcher(), settings.deviceMailbox())
+                : props;
+    }
+
+    @Override
+    public void preStart() {
+        initialReadings.forEach((deviceId, value) -> {
+            int slot = add(deviceId);
+            table.update(slot, value);
+            if (published != null) {
+                published[slot].set(value);
+            }
+        });
+        log.debug("Dense device group {} started", groupId);
+    }
+
+    @Override
+    public void postStop() {
+        if (ackTimer != null) {
+            ackTimer.cancel();
+        }
+        onFlushAcks();
+        if (subscriptions != null) {
+            subscriptions.stop();
+        }
+        if (published != null) {
+            LatestTemperatures latest = LatestTemperatures.get(getContext().getSystem());
+            for (int slot = 0; slot < published.length; slot++) {
+                if (published[slot] != null) {
+                    latest.unregister(groupId, table.deviceIds[slot], published[slot]);
+                }
+            }
+        }
+        log.debug("Dense device group {} stopped", groupId);
+    }
+
+    private void onTrackDevice(DeviceManager.RequestTrackDevice msg) {
+        if (msg.groupId.equals(this.groupId)) {
+            if (journal != null && table.slotOf(msg.deviceId) < 0) {
+                journal.tell(new DeviceJournal.Registered(groupId, msg.deviceId), getSelf());
+            }
+            int slot = add(msg.deviceId);
+            Integer known = slotBySender.putIfAbsent(getSender(), slot);
+            if (known == null) {
+                getContext().watch(getSender());
+            } else if (known != slot) {
+                slotBySender.put(getSender(), SEVERAL_DEVICES);
+            }
+            getSender().tell(new DeviceManager.DeviceRegistered(), getSelf());
+
+        } else {
+            log.warning(
+                    "Ignoring Track device for group {}. This actor is responsible for group {}.",
+                    msg.groupId,
+                    this.groupId
+            );
+        }
+    }
+
+    private void onBulkTrackDevices(DeviceManager.BulkTrackDevices msg) {
+        if (!msg.groupId.equals(this.groupId)) {
+            log.warning("Ignoring bulk track devices for group {}. This actor is responsible for group {}.",
+                    msg.groupId, this.groupId);
+            return;
+        }
+        int added = 0;
+        for (String deviceId : msg.deviceIds) {
+            if (table.slotOf(deviceId) < 0) {
+                if (journal != null) {
+                    journal.tell(new DeviceJournal.Registered(groupId, deviceId), getSelf());
+                }
+                add(deviceId);
+                added++;
+            }
+        }
+        getSender().tell(new DeviceManager.DevicesTracked(msg.requestId, groupId, added), getSelf());
+    }
+
+    private int add(String deviceId) {
+        int slot = table.add(deviceId);
+        if (slot >= unackedReadings.length) {
+            int length = Math.max(unackedReadings.length * 2, slot + 1);
+            unackedReadings = Arrays.copyOf(unackedReadings, length);
+            pendingAckRequestIds = Arrays.copyOf(pendingAckRequestIds, length);
+            pendingAckReceivers = Arrays.copyOf(pendingAckReceivers, length);
+        }
+        if (published != null && (slot >= published.length || published[slot] == null)) {
+            if (slot >= published.length) {
+                published = Arrays.copyOf(published, Math.max(published.length * 2, slot + 1));
+            }
+            published[slot] = LatestTemperatures.get(getContext().getSystem()).register(groupId, deviceId);
+        }
+        return slot;
+    }
+
+    private void update(int slot, double value) {
+        double previous = table.latest[slot];
+        table.update(slot, value);
+        if (published != null) {
+            published[slot].set(value);
+        }
+        if (rollups != null) {
+            rollups.record(slot, System.currentTimeMillis(), value);
+        }
+        if (subscriptions != null && Double.compare(previous, value) != 0) {
+            subscriptions.changed(table.deviceIds[slot], value, getContext());
+        }
+        if (journal != null && Double.compare(previous, value) != 0) {
+            journal.tell(new DeviceJournal.Recorded(groupId, table.deviceIds[slot], value), getSelf());
+        }
+    }
+
+    // jumps ahead of the queued readings with a control aware mailbox, like the one of Device
+    private static final class FlushAcks implements ControlMessage {}
+
+    /**
+     * the AckPolicy of Device, applied to each slot; with an interval, one timer of the group
+     * sends every acknowledgement owed when it fires
+     */
+    private void acknowledge(int slot, long requestId) {
+        if (ackPolicy.interval != null) {
+            pendingAckRequestIds[slot] = requestId;
+            pendingAckReceivers[slot] = getSender();
+
+            if (ackTimer == null) {
+                ackTimer = getContext().getSystem().scheduler().scheduleOnce(
+                        ackPolicy.interval,
+                        getSelf(),
+                        new FlushAcks(),
+                        getContext().dispatcher(),
+                        getSelf());
+            }
+
+        } else if (++unackedReadings[slot] >= ackPolicy.everyN) {
+            unackedReadings[slot] = 0;
+            pendingAckReceivers[slot] = null;
+            getSender().tell(new Device.TemperatureRecorded(requestId), getSelf());
+
+        } else {
+            // owed when the group stops before the n-th reading
+            pendingAckRequestIds[slot] = requestId;
+            pendingAckReceivers[slot] = getSender();
+        }
+    }
+
+    private void onFlushAcks() {
+        ackTimer = null;
+        for (int slot = 0; slot < pendingAckReceivers.length; slot++) {
+            if (pendingAckReceivers[slot] != null) {
+                pendingAckReceivers[slot].tell(new Device.TemperatureRecorded(pendingAckRequestIds[slot]), getSelf());
+                pendingAckReceivers[slot] = null;
+            }
+        }
+    }
+
+    private void onDeviceEnvelope(DeviceManager.DeviceEnvelope envelope) {
+        int slot = envelope.groupId.equals(this.groupId) ? table.slotOf(envelope.deviceId) : -1;
+        if (slot < 0) {
+            log.debug("Dropping {} for untracked device {}", envelope.message.getClass().getSimpleName(), envelope.deviceId);
+            return;
+        }
+        onDeviceMessage(slot, envelope.message);
+    }
+
+    private void onBareDeviceMessage(Object message) {
+        Integer slot = slotBySender.get(getSender());
+        if (slot == null || slot == SEVERAL_DEVICES) {
+            log.warning("Dropping {} from {}, which did not register exactly one device of group {}: "
+                            + "send it in a DeviceEnvelope instead",
+                    message.getClass().getSimpleName(), getSender(), groupId);
+            return;
+        }
+        onDeviceMessage(slot, message);
+    }
+
+    private void onDeviceMessage(int slot, Object message) {
+        if (message instanceof Device.RecordTemperature) {
+            Device.RecordTemperature r = (Device.RecordTemperature) message;
+            // published first, so whoever got the acknowledgement also reads the reading
+            update(slot, r.value);
+            acknowledge(slot, r.requestId);
+
+        } else if (message instanceof Device.RecordTemperatureNoAck) {
+            update(slot, ((Device.RecordTemperatureNoAck) message).value);
+
+        } else if (message instanceof Device.RecordTemperatures) {
+            Device.RecordTemperatures r = (Device.RecordTemperatures) message;
+            if (r.values.length > 0) {
+                // only the last one is the latest, but all of them count in the rollups
+                if (rollups != null) {
+                    long now = System.currentTimeMillis();
+                    for (int i = 0; i < r.values.length - 1; i++) {
+                        rollups.record(slot, now, r.values[i]);
+                    }
+                }
+                update(slot, r.values[r.values.length - 1]);
+            }
+
+        } else if (message instanceof Device.ReadTemperature) {
+            getSender().tell(
+                    new Device.RespondTemperature(((Device.ReadTemperature) message).requestId, table.latest[slot]),
+                    getSelf());
+
+        } else if (message instanceof DeviceManager.RequestTrackDevice) {
+            getSender().tell(new DeviceManager.DeviceRegistered(), getSelf());
+
+        } else {
+            unhandled(message);
+        }
+    }
+
+    /**
+     * every device answers from the table at once, so the query of DeviceGroup with nobody to ask
+     * applies the timeout, quorum, latency target and follow-up of the request
+     */
+    private void onAllTemperatures(DeviceGroup.RequestAllTemperatures r) {
+        if (r.hasOptions()) {
+            getContext().actorOf(DeviceGroupQuery.props(
+                    Collections.emptyMap(), table.temperatures(), r, getSender(), settings));
+        } else {
+            getSender().tell(new DeviceGroup.ReplyAllTemperatures(r.requestId, table.temperatures()), getSelf());
+        }
+    }
+
+    private void onTerminated(Terminated t) {
+        slotBySender.remove(t.getActor());
+        if (subscriptions != null) {
+            subscriptions.unsubscribe(t.getActor(), getContext());
+        }
+    }
+
+    private void onTemperatureBatch(DeviceManager.RecordTemperatureBatch batch) {
+        long[] accepted = new long[batch.readings.size()];
+        int acceptedCount = 0;
+
+        for (DeviceManager.Reading reading : batch.readings) {
+            int slot = reading.groupId.equals(this.groupId) ? table.slotOf(reading.deviceId) : -1;
+
+            // devices must be tracked before recording, so unknown ones are not accepted
+            if (slot >= 0) {
+                update(slot, reading.value);
+                accepted[acceptedCount++] = reading.requestId;
+            }
+        }
+
+        getSender().tell(
+                new DeviceManager.TemperatureBatchRecorded(batch.batchId, Arrays.copyOf(accepted, acceptedCount)),
+                getSelf());
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(DeviceManager.RequestTrackDevice.class, this::onTrackDevice)
+                .match(DeviceManager.BulkTrackDevices.class, this::onBulkTrackDevices)
+                .match(DeviceManager.DeviceEnvelope.class, this::onDeviceEnvelope)
+                .match(Device.RecordTemperature.class, this::onBareDeviceMessage)
+                .match(Device.RecordTemperatureNoAck.class, this::onBareDeviceMessage)
+                .match(Device.RecordTemperatures.class, this::onBareDeviceMessage)
+                .match(Device.ReadTemperature.class, this::onBareDeviceMessage)
+                .match(DeviceManager.RecordTemperatureBatch.class, this::onTemperatureBatch)
+                .match(DeviceManager.RequestDeviceRef.class, r ->
+                        getSender().tell(new DeviceManager.DeviceRefResolved(
+                                r.requestId, r.groupId, r.deviceId, Optional.empty()), getSelf()))
+                .match(DeviceGroup.RequestDeviceList.class, r ->
+                        getSender().tell(new DeviceGroup.ReplyDeviceList(r.requestId, table.deviceIds()), getSelf()))
+                .match(DeviceGroup.RequestMyId.class, r ->
+                        getSender().tell(new DeviceGroup.ReplyMyId(r.requestId, groupId), getSelf()))
+                .match(DeviceGroup.RequestAllTemperatures.class, this::onAllTemperatures)
+                .match(DeviceGroup.RequestGroupTemperatureStats.class, r ->
+                        getSender().tell(table.statistics(r.requestId), getSelf()))
+                .match(DeviceGroup.RequestRollups.class, r ->
+                        getSender().tell(rollups != null
+                                        ? rollups.series(r.requestId, table.slotOf(r.deviceId), r.from, r.to, r.resolution.toMillis())
+                                        : GroupRollups.none(r.requestId),
+                                getSelf()))
+                .match(Device.SubscribeTemperature.class, s -> {
+                    if (subscriptions == null) {
+                        subscriptions = new TemperatureSubscriptions(groupId);
+                    }
+                    subscriptions.subscribe(s, table.readings(), getContext());
+                })
+                .match(Device.UnsubscribeTemperature.class, u -> {
+                    if (subscriptions != null) {
+                        subscriptions.unsubscribe(getSender(), getContext());
+                    }
+                })
+                .match(TemperatureSubscriptions.Flush.class, f -> subscriptions.flush(f, getContext()))
+                .match(FlushAcks.class, f -> onFlushAcks())
+                // subscribers and the senders of registrations are watched
+                .match(Terminated.class, this::onTerminated)
+                .build();
+    }
+}
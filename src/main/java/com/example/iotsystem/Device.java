@@ -1,11 +1,21 @@
 package com.example.iotsystem;
 
 import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.NotInfluenceReceiveTimeout;
 import akka.actor.Props;
+import akka.actor.ReceiveTimeout;
+import akka.actor.Terminated;
+import akka.dispatch.ControlMessage;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
 
+import java.util.Collections;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 
 public class Device extends AbstractActor {
@@ -15,15 +25,156 @@ public class Device extends AbstractActor {
     final String groupId;
     final String deviceId;
 
-    Optional<Double> lastTemperatureReading = Optional.empty();
+    // devices created by a DeviceGroup report every change of their reading to it
+    final boolean reportsToGroup;
 
-    public Device(String groupId, String deviceId) {
+    final AckPolicy ackPolicy;
+    final int traceReadingsEvery;
+    int readingsSinceTrace = 0;
+
+    /**
+     * marks the absence of a reading, so the state and the replies stay primitive
+     */
+    public static final double NO_READING = Double.NaN;
+
+    double lastTemperatureReading;
+
+    // null unless the settings ask for a history
+    final TemperatureHistory history;
+    // the history is only a buffer, flushed to the HistorySegments of the group when full
+    final boolean spillsHistory;
+
+    final boolean publishLatest;
+    // slot of this device in LatestTemperatures while it is running, when it publishes
+    LatestTemperatures.Slot published;
+
+    // null until someone subscribes
+    TemperatureSubscriptions subscriptions;
+
+    // where changes of the reading are journaled, null unless the manager persists its state
+    final ActorRef journal;
+
+    // devices of a group ask it to stop them after that long without a message, zero never
+    final FiniteDuration passivateAfter;
+    // set once DeviceRegistered handed the ActorRef of this device out, which must then stay valid
+    boolean refHandedOut = false;
+    // set once the device asked its group to stop it
+    boolean passivating = false;
+
+    //
+    // rollup window being recorded, reported to the group by a timer at its end, or earlier when
+    // a reading falls after it or the device stops
+    //
+    final long rollupWindowMillis;
+    long rollupWindowStart = GroupRollups.NO_WINDOW;
+    int rollupCount;
+    double rollupMin;
+    double rollupMax;
+    double rollupSum;
+    Cancellable rollupTimer;
+
+    //
+    // acknowledgement still owed to a producer when the policy does not ack every reading
+    //
+    int unackedReadings = 0;
+    long pendingAckRequestId;
+    ActorRef pendingAckReceiver;
+    Cancellable ackTimer;
+
+    public Device(String groupId, String deviceId, IotSettings settings) {
+        this(groupId, deviceId, settings, false);
+    }
+
+    Device(String groupId, String deviceId, IotSettings settings, boolean reportsToGroup) {
+        this(groupId, deviceId, settings, reportsToGroup, null, NO_READING);
+    }
+
+    Device(String groupId, String deviceId, IotSettings settings, boolean reportsToGroup,
+           ActorRef journal, double initialReading) {
+        settings = IotSettings.orFromConfig(settings, getContext().getSystem());
+        this.journal = journal;
+        this.lastTemperatureReading = initialReading;
         this.deviceId = deviceId;
         this.groupId = groupId;
+        this.reportsToGroup = reportsToGroup;
+        this.ackPolicy = settings.ackPolicy();
+        this.traceReadingsEvery = settings.traceReadingsEvery();
+        this.history = settings.historyCapacity() > 0 ? new TemperatureHistory(settings.historyCapacity()) : null;
+        this.spillsHistory = history != null && reportsToGroup && !settings.historyDirectory().isEmpty();
+        this.publishLatest = settings.publishLatest();
+        this.rollupWindowMillis = reportsToGroup ? settings.rollupWindow().toMillis() : 0L;
+        this.passivateAfter = reportsToGroup ? settings.passivateAfter() : Duration.Zero();
     }
 
+    /**
+     * a device configured by the "iot-system" section of the actor system configuration
+     */
     public static Props props(String groupId, String deviceId) {
-        return Props.create(Device.class, () -> new Device(groupId, deviceId));
+        return props(groupId, deviceId, null);
+    }
+
+    /**
+     * runs on the device dispatcher and mailbox of the settings, null settings keep the defaults
+     * of the actor system (or the ones of akka.actor.deployment)
+     */
+    public static Props props(String groupId, String deviceId, IotSettings settings) {
+        return deploy(Props.create(Device.class, () -> new Device(groupId, deviceId, settings)), settings);
+    }
+
+    /**
+     * a device of a DeviceGroup, which must be its parent
+     */
+    static Props groupMemberProps(String groupId, String deviceId, IotSettings settings) {
+        return groupMemberProps(groupId, deviceId, settings, null, NO_READING);
+    }
+
+    /**
+     * a group member journaling to "journal" when it is not null, which starts with the reading
+     * it had before a restart
+     */
+    static Props groupMemberProps(
+            String groupId, String deviceId, IotSettings settings, ActorRef journal, double initialReading) {
+
+        return deploy(Props.create(Device.class,
+                () -> new Device(groupId, deviceId, settings, true, journal, initialReading)), settings);
+    }
+
+    private static Props deploy(Props props, IotSettings settings) {
+        return settings != null
+                ? IotSettings.deploy(props, settings.deviceDispatcher(), settings.deviceMailbox())
+                : props;
+    }
+
+    /**
+     * when a RecordTemperature is acknowledged with TemperatureRecorded
+     *
+     * an acknowledgement that is not sent right away carries the latest request id and covers
+     * every earlier reading of the same producer, so everyN and every(interval) are meant for
+     * devices with a single acknowledged producer (unacknowledged producers may share it freely)
+     */
+    public static final class AckPolicy {
+        final int everyN;
+        final FiniteDuration interval;
+
+        private AckPolicy(int everyN, FiniteDuration interval) {
+            this.everyN = everyN;
+            this.interval = interval;
+        }
+
+        public static AckPolicy always() {
+            return new AckPolicy(1, null);
+        }
+
+        public static AckPolicy everyN(int n) {
+            if (n < 1) {
+                throw new IllegalArgumentException("n must be positive, but was " + n);
+            }
+            return new AckPolicy(n, null);
+        }
+
+        public static AckPolicy every(FiniteDuration interval) {
+            return new AckPolicy(0, interval);
+        }
     }
 
     public static final class RecordTemperature {
@@ -36,6 +187,33 @@ public class Device extends AbstractActor {
         }
     }
 
+    /**
+     * several readings for this device delivered in one message, in arrival order
+     * it is not acknowledged by the device, the DeviceGroup acknowledges the whole batch
+     */
+    public static final class RecordTemperatures {
+        final long[] requestIds;
+        final double[] values;
+
+        public RecordTemperatures(long[] requestIds, double[] values) {
+            this.requestIds = requestIds;
+            this.values = values;
+        }
+    }
+
+    /**
+     * same as RecordTemperature, but never acknowledged whatever the AckPolicy of the device is
+     */
+    public static final class RecordTemperatureNoAck {
+        final long requestId;
+        final double value;
+
+        public RecordTemperatureNoAck(long requestId, double value) {
+            this.requestId = requestId;
+            this.value = value;
+        }
+    }
+
     public static final class TemperatureRecorded {
         final long requestId;
         public TemperatureRecorded(long requestId) {
@@ -43,6 +221,62 @@ public class Device extends AbstractActor {
         }
     }
 
+    /**
+     * sent instead of TemperatureRecorded by a CoalescingDeviceMailbox, when a newer reading
+     * replaced this one before the device processed it
+     */
+    public static final class TemperatureSuperseded {
+        final long requestId;
+        final long supersededBy;
+
+        public TemperatureSuperseded(long requestId, long supersededBy) {
+            this.requestId = requestId;
+            this.supersededBy = supersededBy;
+        }
+    }
+
+    /**
+     * subscribes the sender to the changes of a Device, or of every device of a DeviceGroup or
+     * DenseDeviceGroup: it receives TemperatureSubscribed, the current readings, then every change
+     * of at least "deadband" since the value it was last told, at most once per minInterval and device
+     *
+     * a subscriber has one subscription per actor, subscribing again replaces it, and it is
+     * unsubscribed when it stops
+     */
+    public static final class SubscribeTemperature {
+        final long requestId;
+        final double deadband;
+        final FiniteDuration minInterval;
+
+        public SubscribeTemperature(long requestId, double deadband, FiniteDuration minInterval) {
+            this.requestId = requestId;
+            this.deadband = deadband;
+            this.minInterval = minInterval;
+        }
+    }
+
+    public static final class TemperatureSubscribed {
+        final long requestId;
+
+        public TemperatureSubscribed(long requestId) {
+            this.requestId = requestId;
+        }
+    }
+
+    public static final class UnsubscribeTemperature {}
+
+    public static final class TemperatureChanged {
+        public final String groupId;
+        public final String deviceId;
+        public final double value;
+
+        public TemperatureChanged(String groupId, String deviceId, double value) {
+            this.groupId = groupId;
+            this.deviceId = deviceId;
+            this.value = value;
+        }
+    }
+
     public static final class ReadTemperature {
         final long requestId;
         public ReadTemperature(long requestId) {
@@ -52,22 +286,256 @@ public class Device extends AbstractActor {
 
     public static final class RespondTemperature {
         final long requestId;
-        final Optional<Double> value;
+        final double value;
 
-        public RespondTemperature(long requestId, Optional<Double> value) {
+        public RespondTemperature(long requestId, double value) {
             this.requestId = requestId;
             this.value = value;
         }
+
+        public boolean hasValue() {
+            return !Double.isNaN(value);
+        }
+
+        public Optional<Double> optionalValue() {
+            return hasValue() ? Optional.of(value) : Optional.empty();
+        }
+    }
+
+    /**
+     * recorded readings with from <= timestamp < to, timestamps in epoch milliseconds
+     * empty when the device keeps no history
+     */
+    public static final class ReadTemperatureHistory {
+        final long requestId;
+        final long from;
+        final long to;
+
+        public ReadTemperatureHistory(long requestId, long from, long to) {
+            this.requestId = requestId;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    public static final class RespondTemperatureHistory {
+        final long requestId;
+        final long[] timestamps;
+        final double[] values;
+
+        public RespondTemperatureHistory(long requestId, long[] timestamps, double[] values) {
+            this.requestId = requestId;
+            this.timestamps = timestamps;
+            this.values = values;
+        }
     }
 
     @Override
     public void preStart() {
-        log.info("Device Actor {}-{} started", groupId, deviceId);
+        if (publishLatest) {
+            published = LatestTemperatures.get(getContext().getSystem()).register(groupId, deviceId);
+            published.set(lastTemperatureReading);
+        }
+        if (passivateAfter.toNanos() > 0) {
+            getContext().setReceiveTimeout(passivateAfter);
+        }
+        log.debug("Device Actor {}-{} started", groupId, deviceId);
     }
 
     @Override
     public void postStop() {
-        log.info("Device Actor {}-{} stopped", groupId, deviceId);
+        // whatever stops it, the acknowledgement it owes is sent as the timer would have
+        if (ackTimer != null) {
+            ackTimer.cancel();
+        }
+        onFlushAck();
+        if (rollupTimer != null) {
+            rollupTimer.cancel();
+        }
+        closeRollupWindow();
+        if (spillsHistory && history.size > 0) {
+            flushHistory(null);
+        }
+        // a passivated member of a group is still tracked, so its reading stays readable until the
+        // group removes the device
+        if (published != null && !reportsToGroup) {
+            LatestTemperatures.get(getContext().getSystem()).unregister(groupId, deviceId, published);
+        }
+        if (subscriptions != null) {
+            subscriptions.stop();
+        }
+        log.debug("Device Actor {}-{} stopped", groupId, deviceId);
+    }
+
+    /**
+     * readings are logged only when sampling is configured, so the value is not even boxed otherwise
+     */
+    private void trace(long requestId, double value) {
+        if (traceReadingsEvery > 0 && ++readingsSinceTrace >= traceReadingsEvery) {
+            readingsSinceTrace = 0;
+            if (log.isDebugEnabled()) {
+                log.debug("Recorded Temperature reading with {} and {}", value, requestId);
+            }
+        }
+    }
+
+    private void record(long requestId, double value, long now) {
+        trace(requestId, value);
+        lastTemperatureReading = value;
+        if (history != null) {
+            history.record(now, value);
+            if (spillsHistory && history.isFull()) {
+                flushHistory(null);
+            }
+        }
+        if (rollupWindowMillis > 0) {
+            rollup(now, value);
+        }
+    }
+
+    /**
+     * hands the buffered readings to the group, which answers "read" when it is not null,
+     * once they are in its segments
+     */
+    private void flushHistory(ReadTemperatureHistory read) {
+        RespondTemperatureHistory buffered = history.range(0L, Long.MIN_VALUE, Long.MAX_VALUE);
+        history.clear();
+        DeviceGroup.RecordHistory flush = new DeviceGroup.RecordHistory(deviceId, buffered.timestamps, buffered.values, read);
+        if (read != null) {
+            getContext().getParent().forward(flush, getContext());
+        } else {
+            getContext().getParent().tell(flush, getSelf());
+        }
+    }
+
+    private void rollup(long now, double value) {
+        long windowStart = Math.floorDiv(now, rollupWindowMillis) * rollupWindowMillis;
+        if (windowStart != rollupWindowStart) {
+            closeRollupWindow();
+            rollupWindowStart = windowStart;
+            rollupMin = value;
+            rollupMax = value;
+            if (rollupTimer != null) {
+                rollupTimer.cancel();
+            }
+            rollupTimer = getContext().getSystem().scheduler().scheduleOnce(
+                    FiniteDuration.create(Math.max(0L, windowStart + rollupWindowMillis - now), TimeUnit.MILLISECONDS),
+                    getSelf(),
+                    new CloseRollupWindow(windowStart),
+                    getContext().dispatcher(),
+                    getSelf());
+        }
+        rollupCount++;
+        rollupMin = Math.min(rollupMin, value);
+        rollupMax = Math.max(rollupMax, value);
+        rollupSum += value;
+    }
+
+    // sent when a window is over, so a device that stops reporting still reports its last window
+    private static final class CloseRollupWindow implements NotInfluenceReceiveTimeout {
+        final long windowStart;
+
+        CloseRollupWindow(long windowStart) {
+            this.windowStart = windowStart;
+        }
+    }
+
+    private void onCloseRollupWindow(CloseRollupWindow c) {
+        if (c.windowStart == rollupWindowStart) {
+            rollupTimer = null;
+            closeRollupWindow();
+            rollupWindowStart = GroupRollups.NO_WINDOW;
+        }
+    }
+
+    private void closeRollupWindow() {
+        if (rollupCount > 0) {
+            getContext().getParent().tell(new DeviceGroup.RollupWindowClosed(
+                    deviceId, rollupWindowStart, rollupCount, rollupMin, rollupMax, rollupSum), getSelf());
+            rollupCount = 0;
+            rollupSum = 0.0;
+        }
+    }
+
+    /**
+     * makes the reading visible outside the device, once per message whatever the number of readings
+     */
+    private void publishChange(double previous) {
+        if (published != null) {
+            published.set(lastTemperatureReading);
+        }
+        if (subscriptions != null && Double.compare(previous, lastTemperatureReading) != 0) {
+            subscriptions.changed(deviceId, lastTemperatureReading, getContext());
+        }
+        if (journal != null && Double.compare(previous, lastTemperatureReading) != 0) {
+            journal.tell(new DeviceJournal.Recorded(groupId, deviceId, lastTemperatureReading), getSelf());
+        }
+        if (reportsToGroup && Double.compare(previous, lastTemperatureReading) != 0) {
+            getContext().getParent().tell(
+                    new DeviceGroup.TemperatureUpdated(deviceId, lastTemperatureReading), getSelf());
+        }
+    }
+
+    // jumps ahead of the queued readings with a control aware mailbox
+    private static final class FlushAck implements ControlMessage {}
+
+    private void acknowledge(long requestId) {
+        if (ackPolicy.interval != null) {
+            pendingAckRequestId = requestId;
+            pendingAckReceiver = getSender();
+
+            if (ackTimer == null) {
+                ackTimer = getContext().getSystem().scheduler().scheduleOnce(
+                        ackPolicy.interval,
+                        getSelf(),
+                        new FlushAck(),
+                        getContext().dispatcher(),
+                        getSelf());
+            }
+
+        } else if (++unackedReadings >= ackPolicy.everyN) {
+            unackedReadings = 0;
+            pendingAckReceiver = null;
+            getSender().tell(new TemperatureRecorded(requestId), getSelf());
+
+        } else {
+            // owed when the device is passivated before the n-th reading
+            pendingAckRequestId = requestId;
+            pendingAckReceiver = getSender();
+        }
+    }
+
+    private void onFlushAck() {
+        ackTimer = null;
+        if (pendingAckReceiver != null) {
+            pendingAckReceiver.tell(new TemperatureRecorded(pendingAckRequestId), getSelf());
+            pendingAckReceiver = null;
+        }
+    }
+
+    /**
+     * asks the group to stop this idle device, unless someone subscribed to it or holds its ActorRef;
+     * the acknowledgement it owes, whatever the policy, and its open rollup window are sent first,
+     * and the group keeps its reading and starts it again with its next message
+     */
+    private void onIdle() {
+        if (refHandedOut || (subscriptions != null && !subscriptions.subscriptions.isEmpty())) {
+            return;
+        }
+        passivating = true;
+        getContext().setReceiveTimeout(Duration.Undefined());
+        if (ackTimer != null) {
+            ackTimer.cancel();
+        }
+        onFlushAck();
+        unackedReadings = 0;
+        if (rollupTimer != null) {
+            rollupTimer.cancel();
+            rollupTimer = null;
+        }
+        closeRollupWindow();
+        rollupWindowStart = GroupRollups.NO_WINDOW;
+        getContext().getParent().tell(new DeviceGroup.Passivate(), getSelf());
     }
 
     @Override
@@ -75,7 +543,14 @@ public class Device extends AbstractActor {
         return receiveBuilder()
 
                 .match(DeviceManager.RequestTrackDevice.class, r -> {
-                    if (this.groupId.equals(r.groupId) && this.deviceId.equals(r.deviceId)) {
+                    if (passivating) {
+                        // this actor is about to stop, the group hands the next one out instead
+                        getContext().getParent().forward(r, getContext());
+
+                    } else if (this.groupId.equals(r.groupId) && this.deviceId.equals(r.deviceId)) {
+                        // the requester talks to this actor from now on, so it is never passivated
+                        refHandedOut = true;
+                        getContext().setReceiveTimeout(Duration.Undefined());
                         getSender().tell(new DeviceManager.DeviceRegistered(), getSelf());
                     } else {
                         log.warning(
@@ -92,11 +567,64 @@ public class Device extends AbstractActor {
                 })
 
                 .match(RecordTemperature.class, r -> {
-                    log.info("Recorded Temperature reading with {} and {}", r.value, r.requestId);
-                    lastTemperatureReading = Optional.of(r.value);
-                    getSender().tell(new TemperatureRecorded(r.requestId), getSelf());
+                    double previous = lastTemperatureReading;
+                    record(r.requestId, r.value, System.currentTimeMillis());
+                    // published first, so whoever got the acknowledgement also reads the reading
+                    publishChange(previous);
+                    acknowledge(r.requestId);
                 })
 
+                .match(RecordTemperatureNoAck.class, r -> {
+                    double previous = lastTemperatureReading;
+                    record(r.requestId, r.value, System.currentTimeMillis());
+                    publishChange(previous);
+                })
+
+                .match(RecordTemperatures.class, r -> {
+                    double previous = lastTemperatureReading;
+                    long now = System.currentTimeMillis();
+                    for (int i = 0; i < r.values.length; i++) {
+                        record(r.requestIds[i], r.values[i], now);
+                    }
+                    publishChange(previous);
+                })
+
+                .match(ReadTemperatureHistory.class, r -> {
+                    if (spillsHistory) {
+                        flushHistory(r);
+                        return;
+                    }
+                    getSender().tell(
+                            history != null
+                                    ? history.range(r.requestId, r.from, r.to)
+                                    : new RespondTemperatureHistory(r.requestId, new long[0], new double[0]),
+                            getSelf());
+                })
+
+                .match(FlushAck.class, f -> onFlushAck())
+
+                .match(CloseRollupWindow.class, this::onCloseRollupWindow)
+
+                .match(ReceiveTimeout.class, t -> onIdle())
+
+                .match(SubscribeTemperature.class, s -> {
+                    if (subscriptions == null) {
+                        subscriptions = new TemperatureSubscriptions(groupId);
+                    }
+                    subscriptions.subscribe(s, Collections.singletonMap(deviceId, lastTemperatureReading), getContext());
+                })
+
+                .match(UnsubscribeTemperature.class, u -> {
+                    if (subscriptions != null) {
+                        subscriptions.unsubscribe(getSender(), getContext());
+                    }
+                })
+
+                .match(TemperatureSubscriptions.Flush.class, f -> subscriptions.flush(f, getContext()))
+
+                // only subscribers are watched
+                .match(Terminated.class, t -> subscriptions.unsubscribe(t.getActor(), getContext()))
+
                 .build();
     }
 }
\ No newline at end of file
@@ -0,0 +1,132 @@
+package com.example.iotsystem;
+
+import akka.actor.*;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * sends each part of a batch to its destination and merges their acknowledgements
+ * so the producer receives one DeviceManager.TemperatureBatchRecorded for the whole batch
+ *
+ * a destination is a group, or the shard router when the manager is sharded; the parts are
+ * sent with their index as batch id, so one destination can acknowledge several parts
+ */
+public class DeviceBatchCollector extends AbstractActor {
+
+    final long batchId;
+    final ActorRef requester;
+    final List<ActorRef> destinations;
+    final List<List<DeviceManager.Reading>> parts;
+
+    final boolean[] acknowledged;
+    int stillWaiting;
+
+    long[] accepted = new long[16];
+    int acceptedCount = 0;
+
+    Cancellable collectionTimeoutTimer;
+
+    public DeviceBatchCollector(
+            List<ActorRef> destinations,
+            List<List<DeviceManager.Reading>> parts,
+            long batchId,
+            ActorRef requester,
+            FiniteDuration timeout) {
+
+        this.batchId = batchId;
+        this.requester = requester;
+        this.destinations = destinations;
+        this.parts = parts;
+        this.acknowledged = new boolean[parts.size()];
+        this.stillWaiting = parts.size();
+
+        collectionTimeoutTimer = getContext().getSystem().scheduler().scheduleOnce(
+                timeout,
+                getSelf(),
+                new CollectionTimeout(),
+                getContext().dispatcher(),
+                getSelf());
+    }
+
+    public static final class CollectionTimeout {}
+
+    /**
+     * parts.get(i) is sent to destinations.get(i)
+     */
+    public static Props props(
+            List<ActorRef> destinations,
+            List<List<DeviceManager.Reading>> parts,
+            long batchId,
+            ActorRef requester,
+            FiniteDuration timeout) {
+
+        return Props.create(
+                DeviceBatchCollector.class,
+                () -> new DeviceBatchCollector(destinations, parts, batchId, requester, timeout));
+    }
+
+    @Override
+    public void preStart() {
+        for (int part = 0; part < parts.size(); part++) {
+            getContext().watch(destinations.get(part));
+            destinations.get(part).tell(new DeviceManager.RecordTemperatureBatch(part, parts.get(part)), getSelf());
+        }
+    }
+
+    @Override
+    public void postStop() {
+        collectionTimeoutTimer.cancel();
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(DeviceManager.TemperatureBatchRecorded.class, r -> {
+                    int part = (int) r.batchId;
+                    if (part >= 0 && part < acknowledged.length && !acknowledged[part]) {
+                        acknowledged[part] = true;
+                        stillWaiting--;
+                        append(r.requestIds);
+                        replyWhenDone();
+                    }
+
+                }).match(Terminated.class, t -> {
+                    // a destination that stopped before answering has not accepted its readings
+                    for (int part = 0; part < acknowledged.length; part++) {
+                        if (!acknowledged[part] && destinations.get(part).equals(t.getActor())) {
+                            acknowledged[part] = true;
+                            stillWaiting--;
+                        }
+                    }
+                    replyWhenDone();
+
+                }).match(CollectionTimeout.class, t -> {
+                    reply();
+
+                }).build();
+    }
+
+    private void append(long[] requestIds) {
+        if (acceptedCount + requestIds.length > accepted.length) {
+            accepted = Arrays.copyOf(accepted, Math.max(accepted.length * 2, acceptedCount + requestIds.length));
+        }
+        System.arraycopy(requestIds, 0, accepted, acceptedCount, requestIds.length);
+        acceptedCount += requestIds.length;
+    }
+
+    private void replyWhenDone() {
+        if (stillWaiting == 0) {
+            reply();
+        }
+    }
+
+    private void reply() {
+        requester.tell(
+                new DeviceManager.TemperatureBatchRecorded(batchId, Arrays.copyOf(accepted, acceptedCount)),
+                getSelf());
+        getContext().stop(getSelf());
+    }
+}
@@ -2,30 +2,125 @@ package com.example.iotsystem;
 
 import akka.actor.AbstractActor;
 import akka.actor.ActorRef;
+import akka.actor.PoisonPill;
 import akka.actor.Props;
 import akka.actor.Terminated;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
 import scala.concurrent.duration.FiniteDuration;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.TimeUnit;
 
 public class DeviceGroup extends AbstractActor {
 
     private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
     final String groupId;
+    final IotSettings settings;
     final Map<String, ActorRef> deviceIdToActor = new HashMap<>();
     final Map<ActorRef, String> actorToDeviceId = new HashMap<>();
 
-    public DeviceGroup(String groupId) {
+    // devices stopping after they asked to be passivated, with the messages that came for them since
+    final Map<String, List<Buffered>> passivating = new HashMap<>();
+
+    // null unless the settings ask for rollups
+    final GroupRollups rollups;
+
+    // null unless the settings give a history directory, opened when the group starts
+    final HistorySegments history;
+
+    // subscribers to the changes of every device, null until someone subscribes
+    TemperatureSubscriptions subscriptions;
+
+    // who resolved the ActorRef of a device, to be told when that actor terminates
+    // the resolvers are watched, and forgotten when they terminate before the device does
+    final Map<String, Set<ActorRef>> resolversByDeviceId = new HashMap<>();
+    final Map<ActorRef, Set<String>> deviceIdsByResolver = new HashMap<>();
+
+    // latest reading of every device, as reported by the devices themselves
+    final DeviceTable table = new DeviceTable();
+
+    //
+    // the snapshot mode: the last collected temperatures, then updated by the devices
+    // once handed out in a reply it is shared, so it is copied before the next change
+    //
+    Map<String, TemperatureReading> snapshot;
+    boolean snapshotShared = false;
+    long snapshotTakenAt;
+
+    //
+    // at most one DeviceGroupQuery runs at a time, every request arriving meanwhile
+    // waits for it and gets the same temperatures with its own request id
+    //
+    ActorRef queryInFlight;
+    final List<PendingRequest> waitingForQuery = new ArrayList<>();
+
+    // requests with their own timeout, quorum, latency target or follow-up get a query of their own
+    final Map<ActorRef, PendingRequest> ownQueries = new HashMap<>();
+
+    // where registrations and removals are journaled, null unless the manager persists its state
+    final ActorRef journal;
+    final Map<String, Double> initialReadings;
+
+    public DeviceGroup(String groupId, IotSettings settings) {
+        this(groupId, settings, null, Collections.emptyMap());
+    }
+
+    DeviceGroup(String groupId, IotSettings settings, ActorRef journal, Map<String, Double> initialReadings) {
         this.groupId = groupId;
+        this.journal = journal;
+        this.initialReadings = initialReadings;
+        this.settings = IotSettings.orFromConfig(settings, getContext().getSystem());
+        this.rollups = this.settings.rollupWindow().toMillis() > 0
+                ? new GroupRollups(this.settings.rollupWindow().toMillis(), this.settings.rollupRetention())
+                : null;
+        this.history = !this.settings.historyDirectory().isEmpty()
+                ? new HistorySegments(
+                        Paths.get(this.settings.historyDirectory()).resolve(encode(groupId)),
+                        this.settings.historySegmentRows(),
+                        this.settings.historyRetention().toMillis())
+                : null;
+    }
+
+    private static String encode(String groupId) {
+        try {
+            return URLEncoder.encode(groupId, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     public static Props props(String groupId) {
-        return Props.create(DeviceGroup.class, () -> new DeviceGroup(groupId));
+        return props(groupId, null);
+    }
+
+    /**
+     * runs on the group dispatcher of the settings, null settings keep the default one
+     */
+    public static Props props(String groupId, IotSettings settings) {
+        return props(groupId, settings, null, Collections.emptyMap());
+    }
+
+    /**
+     * a group journaling to "journal" when it is not null, starting with the devices and readings
+     * it had before a restart
+     */
+    static Props props(String groupId, IotSettings settings, ActorRef journal, Map<String, Double> initialReadings) {
+        Props props = Props.create(DeviceGroup.class,
+                () -> new DeviceGroup(groupId, settings, journal, initialReadings));
+        return settings != null ? IotSettings.deploy(props, settings.groupDispatcher(), "") : props;
     }
 
     public static final class RequestDeviceList {
@@ -61,20 +156,201 @@ public class DeviceGroup extends AbstractActor {
         }
     }
 
+    /**
+     * the reading of every device of the group, waiting at most "timeout" for the devices
+     * (the query timeout of the settings when null)
+     *
+     * with a quorum below 1, or a latency target, the reply comes as soon as that fraction of the
+     * devices answered, or once the target is over, without the devices still waited for and
+     * marked as not complete; with a follow-up, these come later in a ReplyLateTemperatures
+     *
+     * requests without any of these options that arrive together are answered by a single query
+     */
     public static final class RequestAllTemperatures {
         final long requestId;
+        final FiniteDuration timeout;
+        final double quorum;
+        final FiniteDuration latencyTarget;
+        final boolean followUp;
 
         public RequestAllTemperatures(long requestId) {
+            this(requestId, null, 1.0, null, false);
+        }
+
+        public RequestAllTemperatures(
+                long requestId, FiniteDuration timeout, double quorum, FiniteDuration latencyTarget, boolean followUp) {
             this.requestId = requestId;
+            this.timeout = timeout;
+            this.quorum = quorum;
+            this.latencyTarget = latencyTarget;
+            this.followUp = followUp;
+        }
+
+        boolean hasOptions() {
+            return timeout != null || quorum < 1.0 || latencyTarget != null || followUp;
         }
     }
 
+    /**
+     * "complete" is false for an early reply, which lacks the devices that had not answered yet
+     */
     public static final class ReplyAllTemperatures {
         final long requestId;
         final Map<String, TemperatureReading> temperatures;
+        final boolean complete;
+
         public ReplyAllTemperatures(long requestId, Map<String, TemperatureReading> temperatures) {
+            this(requestId, temperatures, true);
+        }
+
+        public ReplyAllTemperatures(long requestId, Map<String, TemperatureReading> temperatures, boolean complete) {
             this.requestId = requestId;
             this.temperatures = temperatures;
+            this.complete = complete;
+        }
+    }
+
+    /**
+     * the follow-up of an early reply: the devices it lacked, as they answered or timed out
+     */
+    public static final class ReplyLateTemperatures {
+        final long requestId;
+        final Map<String, TemperatureReading> temperatures;
+
+        public ReplyLateTemperatures(long requestId, Map<String, TemperatureReading> temperatures) {
+            this.requestId = requestId;
+            this.temperatures = temperatures;
+        }
+    }
+
+    /**
+     * sent by a device of this group whenever its reading changes
+     */
+    public static final class TemperatureUpdated {
+        final String deviceId;
+        final double value;
+
+        public TemperatureUpdated(String deviceId, double value) {
+            this.deviceId = deviceId;
+            this.value = value;
+        }
+    }
+
+    /**
+     * the aggregate of the readings a device recorded in one rollup window, sent when the window is over
+     */
+    public static final class RollupWindowClosed {
+        final String deviceId;
+        final long windowStart;
+        final int count;
+        final double min;
+        final double max;
+        final double sum;
+
+        public RollupWindowClosed(String deviceId, long windowStart, int count, double min, double max, double sum) {
+            this.deviceId = deviceId;
+            this.windowStart = windowStart;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.sum = sum;
+        }
+    }
+
+    /**
+     * sent by an idle device, which the group stops once it handled what was already sent to it
+     */
+    public static final class Passivate {}
+
+    /**
+     * readings a device buffered, for the HistorySegments of the group
+     * with "read", the group answers it once the readings are appended, to the sender of the flush
+     */
+    public static final class RecordHistory {
+        final String deviceId;
+        final long[] timestamps;
+        final double[] values;
+        final Device.ReadTemperatureHistory read;
+
+        public RecordHistory(String deviceId, long[] timestamps, double[] values, Device.ReadTemperatureHistory read) {
+            this.deviceId = deviceId;
+            this.timestamps = timestamps;
+            this.values = values;
+            this.read = read;
+        }
+    }
+
+    /**
+     * the rollups of a device for the windows with from <= start < to (epoch milliseconds), merged
+     * into buckets of "resolution", which is rounded up to a multiple of the rollup window
+     *
+     * a device reports a window once it is over (or when it stops), so the window it is
+     * recording into is not in the answer yet
+     */
+    public static final class RequestRollups {
+        final long requestId;
+        final String deviceId;
+        final long from;
+        final long to;
+        final FiniteDuration resolution;
+
+        public RequestRollups(long requestId, String deviceId, long from, long to, FiniteDuration resolution) {
+            this.requestId = requestId;
+            this.deviceId = deviceId;
+            this.from = from;
+            this.to = to;
+            this.resolution = resolution;
+        }
+    }
+
+    /**
+     * one entry per bucket with readings, oldest first, empty when the group keeps no rollups
+     */
+    public static final class RespondRollups {
+        final long requestId;
+        final long[] windowStarts;
+        final int[] counts;
+        final double[] mins;
+        final double[] maxs;
+        final double[] means;
+
+        public RespondRollups(long requestId, long[] windowStarts, int[] counts, double[] mins, double[] maxs, double[] means) {
+            this.requestId = requestId;
+            this.windowStarts = windowStarts;
+            this.counts = counts;
+            this.mins = mins;
+            this.maxs = maxs;
+            this.means = means;
+        }
+    }
+
+    /**
+     * statistics of the latest readings of the group, answered without asking the devices
+     */
+    public static final class RequestGroupTemperatureStats {
+        final long requestId;
+
+        public RequestGroupTemperatureStats(long requestId) {
+            this.requestId = requestId;
+        }
+    }
+
+    /**
+     * count is the number of devices with a reading, min, max and mean are NaN when it is 0
+     */
+    public static final class RespondGroupTemperatureStats {
+        final long requestId;
+        final int count;
+        final double min;
+        final double max;
+        final double mean;
+
+        public RespondGroupTemperatureStats(long requestId, int count, double min, double max, double mean) {
+            this.requestId = requestId;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.mean = mean;
         }
     }
 
@@ -119,43 +395,197 @@ public class DeviceGroup extends AbstractActor {
     }
 
     @Override
-    public void preStart() {
-        log.info("Device group {} started", groupId);
+    public void preStart() throws IOException {
+        if (history != null) {
+            history.open();
+        }
+        initialReadings.forEach(this::track);
+        log.debug("Device group {} started", groupId);
     }
 
     @Override
-    public void postStop() {
-        log.info("Device group {} stopped", groupId);
+    public void postStop() throws IOException {
+        if (subscriptions != null) {
+            subscriptions.stop();
+        }
+        if (settings.publishLatest()) {
+            LatestTemperatures latest = LatestTemperatures.get(getContext().getSystem());
+            for (String deviceId : table.deviceIds()) {
+                latest.unregister(groupId, deviceId);
+            }
+        }
+        if (history != null) {
+            history.close();
+        }
+        log.debug("Device group {} stopped", groupId);
+    }
+
+    private static final class Buffered {
+        final Object message;
+        final ActorRef sender;
+
+        Buffered(Object message, ActorRef sender) {
+            this.message = message;
+            this.sender = sender;
+        }
+    }
+
+    private static final class PendingRequest {
+        final ActorRef requester;
+        final long requestId;
+        final boolean followUp;
+
+        PendingRequest(ActorRef requester, long requestId, boolean followUp) {
+            this.requester = requester;
+            this.requestId = requestId;
+            this.followUp = followUp;
+        }
+    }
+
+    private boolean snapshotMode() {
+        return settings.snapshotStaleness().toNanos() > 0;
     }
 
     private void onAllTemperatures(RequestAllTemperatures r) {
+        if (snapshotMode()
+                && snapshot != null
+                && System.nanoTime() - snapshotTakenAt <= settings.snapshotStaleness().toNanos()) {
+
+            getSender().tell(new ReplyAllTemperatures(r.requestId, shareSnapshot()), getSelf());
 
-        //
-        // Java collections are mutable, so we create a new one
-        // since it's not safe many threads (actors) modifying the same structure
-        //
-        getContext().actorOf(DeviceGroupQuery.props(
-                        new HashMap<>(this.actorToDeviceId), // -> the new one
-                        r.requestId,
-                        getSender(),
-                        new FiniteDuration(3, TimeUnit.SECONDS)));
+        } else if (r.hasOptions()) {
+            // answers this group too, so devices that were passivated meanwhile are answered from the table
+            ActorRef query = getContext().actorOf(DeviceGroupQuery.props(
+                    new HashMap<>(this.actorToDeviceId), withoutActor(), r, getSelf(), settings));
+            ownQueries.put(query, new PendingRequest(getSender(), r.requestId, r.followUp));
+
+        } else {
+            waitingForQuery.add(new PendingRequest(getSender(), r.requestId, false));
+
+            if (queryInFlight == null) {
+
+                //
+                // Java collections are mutable, so we create a new one
+                // since it's not safe many threads (actors) modifying the same structure
+                // the query answers this group, which fans the reply out to every waiting request
+                //
+                queryInFlight = getContext().actorOf(DeviceGroupQuery.props(
+                                new HashMap<>(this.actorToDeviceId), // -> the new one
+                                withoutActor(),
+                                new RequestAllTemperatures(0L),
+                                getSelf(),
+                                settings));
+            }
+        }
     }
 
-    private void onTrackDevice(DeviceManager.RequestTrackDevice msg) {
-        if (msg.groupId.equals(this.groupId)) {
-            ActorRef act = deviceIdToActor.get(msg.deviceId);
+    private void onQueryReply(ReplyAllTemperatures reply) {
+        PendingRequest own = ownQueries.get(getSender());
+        if (own != null) {
+            if (reply.complete || !own.followUp) {
+                ownQueries.remove(getSender());
+            }
+            own.requester.tell(new ReplyAllTemperatures(
+                    own.requestId, Collections.unmodifiableMap(fromTableIfPassivated(reply.temperatures)), reply.complete),
+                    getSelf());
+            return;
+        }
+        if (!getSender().equals(queryInFlight)) {
+            return;
+        }
+        queryInFlight = null;
+
+        Map<String, TemperatureReading> temperatures;
+        if (snapshotMode()) {
+            snapshot = new HashMap<>(fromTableIfPassivated(reply.temperatures));
+            snapshotShared = false;
+            snapshotTakenAt = System.nanoTime();
+            temperatures = shareSnapshot();
+        } else {
+            temperatures = Collections.unmodifiableMap(fromTableIfPassivated(reply.temperatures));
+        }
 
-            if(act != null) {
-                act.forward(msg, getContext());
+        for (PendingRequest pending : waitingForQuery) {
+            pending.requester.tell(new ReplyAllTemperatures(pending.requestId, temperatures), getSelf());
+        }
+        waitingForQuery.clear();
+    }
 
+    private void onLateTemperatures(ReplyLateTemperatures late) {
+        PendingRequest own = ownQueries.remove(getSender());
+        if (own != null) {
+            own.requester.tell(new ReplyLateTemperatures(
+                    own.requestId, Collections.unmodifiableMap(fromTableIfPassivated(late.temperatures))), getSelf());
+        }
+    }
+
+    /**
+     * the devices without an actor, which a query does not ask, with the reading kept in the table
+     */
+    private Map<String, TemperatureReading> withoutActor() {
+        Map<String, TemperatureReading> readings = new HashMap<>();
+        if (table.size() > deviceIdToActor.size()) {
+            for (int slot = 0; slot < table.slots; slot++) {
+                String deviceId = table.deviceIds[slot];
+                if (deviceId != null && !deviceIdToActor.containsKey(deviceId)) {
+                    readings.put(deviceId, fromTable(slot));
+                }
+            }
+        }
+        return readings;
+    }
+
+    /**
+     * devices passivated while the query ran stopped without answering, they are answered from the table
+     */
+    private Map<String, TemperatureReading> fromTableIfPassivated(Map<String, TemperatureReading> temperatures) {
+        if (!temperatures.containsValue(DeviceNotAvailable.INSTANCE)) {
+            return temperatures;
+        }
+        Map<String, TemperatureReading> answered = new HashMap<>(temperatures);
+        temperatures.forEach((deviceId, reading) -> {
+            int slot = table.slotOf(deviceId);
+            if (reading == DeviceNotAvailable.INSTANCE
+                    && slot >= 0
+                    && (passivating.containsKey(deviceId) || !deviceIdToActor.containsKey(deviceId))) {
+                answered.put(deviceId, fromTable(slot));
+            }
+        });
+        return answered;
+    }
+
+    private TemperatureReading fromTable(int slot) {
+        return Double.isNaN(table.latest[slot]) ? TemperatureNotAvailable.INSTANCE : new Temperature(table.latest[slot]);
+    }
+
+    private Map<String, TemperatureReading> shareSnapshot() {
+        snapshotShared = true;
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    private void updateSnapshot(String deviceId, TemperatureReading reading) {
+        if (snapshot != null) {
+            if (snapshotShared) {
+                snapshot = new HashMap<>(snapshot);
+                snapshotShared = false;
+            }
+            if (reading != null) {
+                snapshot.put(deviceId, reading);
             } else {
-                log.info("creating actor for device {}", msg.deviceId);
-                act = getContext().actorOf(Device.props(msg.groupId, msg.deviceId), "device-" + msg.deviceId);
-                deviceIdToActor.put(msg.deviceId, act);
-                actorToDeviceId.put(act, msg.deviceId);
-                getContext().watch(act);
-                act.forward(msg, getContext());
+                snapshot.remove(deviceId);
+            }
+        }
+    }
+
+    private void onTrackDevice(DeviceManager.RequestTrackDevice msg) {
+        if (msg.groupId.equals(this.groupId)) {
+            if (table.slotOf(msg.deviceId) < 0) {
+                track(msg.deviceId, Device.NO_READING);
+                if (journal != null) {
+                    journal.tell(new DeviceJournal.Registered(groupId, msg.deviceId), getSelf());
+                }
             }
+            deliver(msg.deviceId, msg, getSender());
 
         } else {
             log.warning(
@@ -166,8 +596,228 @@ public class DeviceGroup extends AbstractActor {
         }
     }
 
+    private void onBulkTrackDevices(DeviceManager.BulkTrackDevices msg) {
+        if (!msg.groupId.equals(this.groupId)) {
+            log.warning("Ignoring bulk track devices for group {}. This actor is responsible for group {}.",
+                    msg.groupId, this.groupId);
+            return;
+        }
+        int added = 0;
+        for (String deviceId : msg.deviceIds) {
+            if (table.slotOf(deviceId) < 0) {
+                track(deviceId, Device.NO_READING);
+                if (journal != null) {
+                    journal.tell(new DeviceJournal.Registered(groupId, deviceId), getSelf());
+                }
+                added++;
+            }
+        }
+        log.debug("tracking {} more devices, {} in total", added, table.size());
+        getSender().tell(new DeviceManager.DevicesTracked(msg.requestId, groupId, added), getSelf());
+    }
+
+    /**
+     * a tracked device without its actor yet, which is created with the first message for it
+     */
+    private void track(String deviceId, double reading) {
+        table.update(table.add(deviceId), reading);
+        updateSnapshot(deviceId, Double.isNaN(reading) ? TemperatureNotAvailable.INSTANCE : new Temperature(reading));
+        // published from the table until the device has an actor, which then publishes it
+        if (settings.publishLatest() && !Double.isNaN(reading)) {
+            LatestTemperatures.get(getContext().getSystem()).register(groupId, deviceId).set(reading);
+        }
+    }
+
+    /**
+     * the actor of a tracked device, created from the reading in the table if it has none yet,
+     * null when the device is not tracked
+     */
+    private ActorRef deviceActor(String deviceId) {
+        ActorRef act = deviceIdToActor.get(deviceId);
+        int slot;
+        if (act == null && (slot = table.slotOf(deviceId)) >= 0) {
+            log.debug("creating actor for device {}", deviceId);
+            act = getContext().actorOf(
+                    Device.groupMemberProps(groupId, deviceId, settings, journal, table.latest[slot]), "device-" + deviceId);
+            deviceIdToActor.put(deviceId, act);
+            actorToDeviceId.put(act, deviceId);
+            getContext().watch(act);
+        }
+        return act;
+    }
+
+    /**
+     * sends the message to the actor of a tracked device, created if it has none, or keeps it
+     * until the device is stopped when it is being passivated; false when the device is not tracked
+     */
+    private boolean deliver(String deviceId, Object message, ActorRef sender) {
+        List<Buffered> buffered = passivating.get(deviceId);
+        if (buffered != null) {
+            buffered.add(new Buffered(message, sender));
+            return true;
+        }
+        ActorRef act = deviceActor(deviceId);
+        if (act == null) {
+            return false;
+        }
+        act.tell(message, sender);
+        return true;
+    }
+
+    private void onPassivate(Passivate p) {
+        String id = actorToDeviceId.get(getSender());
+        if (id != null && !passivating.containsKey(id)) {
+            passivating.put(id, new ArrayList<>());
+            // after whatever was already sent to it
+            getSender().tell(PoisonPill.getInstance(), getSelf());
+        }
+    }
+
+    private void onDeviceEnvelope(DeviceManager.DeviceEnvelope envelope) {
+        if (!envelope.groupId.equals(this.groupId) || !deliver(envelope.deviceId, envelope.message, getSender())) {
+            log.debug("Dropping {} for untracked device {}", envelope.message.getClass().getSimpleName(), envelope.deviceId);
+        }
+    }
+
+    private void onRequestDeviceRef(DeviceManager.RequestDeviceRef r) {
+        List<Buffered> buffered = r.groupId.equals(this.groupId) ? passivating.get(r.deviceId) : null;
+        if (buffered != null) {
+            // resolved to the next actor of the device
+            buffered.add(new Buffered(r, getSender()));
+        } else {
+            resolve(r, getSender());
+        }
+    }
+
+    private void resolve(DeviceManager.RequestDeviceRef r, ActorRef requester) {
+        ActorRef act = r.groupId.equals(this.groupId) ? deviceActor(r.deviceId) : null;
+        if (act != null) {
+            addResolver(r.deviceId, requester);
+        }
+        requester.tell(
+                new DeviceManager.DeviceRefResolved(r.requestId, r.groupId, r.deviceId, Optional.ofNullable(act)),
+                getSelf());
+    }
+
+    private void addResolver(String deviceId, ActorRef resolver) {
+        if (resolver.equals(getContext().getSystem().deadLetters())) {
+            return;
+        }
+        resolversByDeviceId.computeIfAbsent(deviceId, d -> new HashSet<>()).add(resolver);
+        deviceIdsByResolver.computeIfAbsent(resolver, r -> new HashSet<>()).add(deviceId);
+        getContext().watch(resolver);
+    }
+
+    /**
+     * forgets a resolver, and stops watching it unless it also subscribed
+     */
+    private void removeResolver(ActorRef resolver, String deviceId) {
+        Set<String> deviceIds = deviceIdsByResolver.get(resolver);
+        if (deviceIds != null && deviceIds.remove(deviceId) && deviceIds.isEmpty()) {
+            deviceIdsByResolver.remove(resolver);
+            if (subscriptions == null || !subscriptions.subscriptions.containsKey(resolver)) {
+                getContext().unwatch(resolver);
+            }
+        }
+    }
+
+    private void onTemperatureBatch(DeviceManager.RecordTemperatureBatch batch) {
+        Map<String, DeviceReadings> readingsByDevice = new LinkedHashMap<>();
+        long[] accepted = new long[batch.readings.size()];
+        int acceptedCount = 0;
+
+        for (DeviceManager.Reading reading : batch.readings) {
+            // devices must be tracked before recording, so unknown ones are not accepted
+            if (reading.groupId.equals(this.groupId) && table.slotOf(reading.deviceId) >= 0) {
+                readingsByDevice.computeIfAbsent(reading.deviceId, d -> new DeviceReadings()).add(reading.requestId, reading.value);
+                accepted[acceptedCount++] = reading.requestId;
+            }
+        }
+
+        readingsByDevice.forEach((deviceId, readings) -> deliver(deviceId, readings.toMessage(), getSelf()));
+
+        getSender().tell(
+                new DeviceManager.TemperatureBatchRecorded(batch.batchId, Arrays.copyOf(accepted, acceptedCount)),
+                getSelf());
+    }
+
+    /**
+     * accumulates the readings of one device in primitive arrays until they are sent
+     */
+    private static final class DeviceReadings {
+        long[] requestIds = new long[4];
+        double[] values = new double[4];
+        int size = 0;
+
+        void add(long requestId, double value) {
+            if (size == values.length) {
+                requestIds = Arrays.copyOf(requestIds, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            requestIds[size] = requestId;
+            values[size] = value;
+            size++;
+        }
+
+        Device.RecordTemperatures toMessage() {
+            return new Device.RecordTemperatures(Arrays.copyOf(requestIds, size), Arrays.copyOf(values, size));
+        }
+    }
+
+    private void onTemperatureUpdated(TemperatureUpdated t) {
+        int slot = table.slotOf(t.deviceId);
+        if (slot >= 0) {
+            table.update(slot, t.value);
+            updateSnapshot(t.deviceId, new Temperature(t.value));
+            if (subscriptions != null) {
+                subscriptions.changed(t.deviceId, t.value, getContext());
+            }
+        }
+    }
+
+    private void onRollupWindowClosed(RollupWindowClosed w) {
+        int slot = table.slotOf(w.deviceId);
+        if (rollups != null && slot >= 0) {
+            rollups.merge(slot, w.windowStart, w.count, w.min, w.max, w.sum);
+        }
+    }
+
+    private void onRecordHistory(RecordHistory r) {
+        if (history == null) {
+            if (r.read != null) {
+                getSender().tell(new Device.RespondTemperatureHistory(r.read.requestId, new long[0], new double[0]), getSelf());
+            }
+            return;
+        }
+        int slot = history.slotOf(r.deviceId);
+        for (int i = 0; i < r.timestamps.length; i++) {
+            history.append(slot, r.timestamps[i], r.values[i]);
+        }
+        if (r.read != null) {
+            getSender().tell(history.range(r.read.requestId, slot, r.read.from, r.read.to), getSelf());
+        }
+    }
+
+    private void onRequestRollups(RequestRollups r) {
+        getSender().tell(rollups != null
+                        ? rollups.series(r.requestId, table.slotOf(r.deviceId), r.from, r.to, r.resolution.toMillis())
+                        : GroupRollups.none(r.requestId),
+                getSelf());
+    }
+
+    private void onSubscribe(Device.SubscribeTemperature s) {
+        if (subscriptions == null) {
+            subscriptions = new TemperatureSubscriptions(groupId);
+        }
+        subscriptions.subscribe(s, table.readings(), getContext());
+    }
+
+    private void onGroupTemperatureStats(RequestGroupTemperatureStats r) {
+        getSender().tell(table.statistics(r.requestId), getSelf());
+    }
+
     private void onDeviceList(RequestDeviceList r) {
-        getSender().tell(new ReplyDeviceList(r.requestId, deviceIdToActor.keySet()), getSelf());
+        getSender().tell(new ReplyDeviceList(r.requestId, new HashSet<>(table.slotByDeviceId.keySet())), getSelf());
     }
 
     private void onRequestId(RequestMyId r) {
@@ -177,18 +827,97 @@ public class DeviceGroup extends AbstractActor {
     private void onTerminated(Terminated t) {
         ActorRef act = t.getActor();
         String id = actorToDeviceId.get(act);
+        if (id == null) {
+            // not a device, so a resolver or a subscriber
+            Set<String> resolved = deviceIdsByResolver.remove(act);
+            if (resolved != null) {
+                for (String deviceId : resolved) {
+                    Set<ActorRef> resolvers = resolversByDeviceId.get(deviceId);
+                    resolvers.remove(act);
+                    if (resolvers.isEmpty()) {
+                        resolversByDeviceId.remove(deviceId);
+                    }
+                }
+            }
+            if (subscriptions != null) {
+                subscriptions.unsubscribe(act, getContext());
+            }
+            return;
+        }
         actorToDeviceId.remove(act);
         deviceIdToActor.remove(id);
-        log.info("the device actor for {} has been terminated", id);
+        invalidateRefs(id);
+
+        List<Buffered> buffered = passivating.remove(id);
+        if (buffered != null) {
+            // passivated: the table keeps its reading, its rollups and its published reading stay,
+            // and it is still tracked
+            log.debug("the device actor for {} was passivated", id);
+            for (Buffered b : buffered) {
+                if (b.message instanceof DeviceManager.RequestDeviceRef) {
+                    resolve((DeviceManager.RequestDeviceRef) b.message, b.sender);
+                } else {
+                    deviceActor(id).tell(b.message, b.sender);
+                }
+            }
+            return;
+        }
+
+        if (rollups != null) {
+            rollups.clear(table.slotOf(id));
+        }
+        table.remove(id);
+        updateSnapshot(id, null);
+        if (settings.publishLatest()) {
+            LatestTemperatures.get(getContext().getSystem()).unregister(groupId, id);
+        }
+        if (journal != null) {
+            journal.tell(new DeviceJournal.Removed(groupId, id), getSelf());
+        }
+        log.debug("the device actor for {} has been terminated", id);
+    }
+
+    private void invalidateRefs(String deviceId) {
+        Set<ActorRef> resolvers = resolversByDeviceId.remove(deviceId);
+        if (resolvers != null) {
+            DeviceManager.DeviceRefInvalidated invalidated = new DeviceManager.DeviceRefInvalidated(groupId, deviceId);
+            for (ActorRef resolver : resolvers) {
+                resolver.tell(invalidated, getSelf());
+                removeResolver(resolver, deviceId);
+            }
+        }
     }
 
     @Override
     public Receive createReceive() {
         return receiveBuilder()
                 .match(DeviceManager.RequestTrackDevice.class, this::onTrackDevice)
+                .match(DeviceManager.BulkTrackDevices.class, this::onBulkTrackDevices)
+                .match(DeviceManager.DeviceEnvelope.class, this::onDeviceEnvelope)
+                .match(DeviceManager.RequestDeviceRef.class, this::onRequestDeviceRef)
+                .match(DeviceManager.RecordTemperatureBatch.class, this::onTemperatureBatch)
+                .match(TemperatureUpdated.class, this::onTemperatureUpdated)
+                .match(RequestGroupTemperatureStats.class, this::onGroupTemperatureStats)
+                .match(RollupWindowClosed.class, this::onRollupWindowClosed)
+                .match(RequestRollups.class, this::onRequestRollups)
+                .match(RecordHistory.class, this::onRecordHistory)
+                .match(Passivate.class, this::onPassivate)
+                .match(Device.SubscribeTemperature.class, this::onSubscribe)
+                .match(Device.UnsubscribeTemperature.class, u -> {
+                    if (subscriptions != null) {
+                        subscriptions.unsubscribe(getSender(), getContext());
+                    }
+                    if (deviceIdsByResolver.containsKey(getSender())) {
+                        // still watched as a resolver
+                        getContext().watch(getSender());
+                    }
+                })
+                .match(TemperatureSubscriptions.Flush.class, f -> subscriptions.flush(f, getContext()))
                 .match(RequestDeviceList.class, this::onDeviceList)
                 .match(RequestMyId.class, this::onRequestId)
                 .match(RequestAllTemperatures.class, this::onAllTemperatures)
+                .match(ReplyAllTemperatures.class, this::onQueryReply)
+                .match(ReplyLateTemperatures.class, this::onLateTemperatures)
                 .match(Terminated.class, this::onTerminated)
                 .build();
     }
@@ -3,19 +3,43 @@ package com.example.iotsystem;
 import akka.actor.*;
 import scala.concurrent.duration.FiniteDuration;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
 
+/**
+ * asks every device of a group for its reading, and answers the requester with ReplyAllTemperatures
+ * once all of them answered, or with DeviceTimedOut for the ones that did not within the timeout
+ *
+ * with a quorum fraction below 1 or a latency target, the reply may come earlier, as soon as that
+ * fraction of the devices answered or the target is over, and is then marked not complete and
+ * lacks the devices still waited for; with a follow-up, they are sent later in a single
+ * ReplyLateTemperatures, otherwise the query stops with the partial reply
+ */
 public class DeviceGroupQuery extends AbstractActor {
 
     final long requestID;
     final ActorRef requester;
     final Map<ActorRef, String> actorToDeviceId;
 
+    final int quorum;
+    final boolean followUp;
+
+    //
+    // actor local state, changed in place on every reply: the whole query stays linear
+    // in the group size, and the map is handed to the requester once, when it is complete
+    //
+    final Set<ActorRef> stillWaiting;
+    final Map<String, DeviceGroup.TemperatureReading> repliesSoFar;
+
+    // the answers that came after the partial reply, null until it was sent
+    Map<String, DeviceGroup.TemperatureReading> lateReplies;
+
     Cancellable queryTimeoutTimer;
+    Cancellable latencyTargetTimer;
 
     public DeviceGroupQuery(
             Map<ActorRef, String> actorToDeviceId,
@@ -23,20 +47,51 @@ public class DeviceGroupQuery extends AbstractActor {
             ActorRef requester,
             FiniteDuration timeout) {
 
+        this(actorToDeviceId, Collections.emptyMap(), requestID, requester, timeout, 1.0, null, false);
+    }
+
+    /**
+     * "answered" are the readings of devices that are not asked, they count for the quorum
+     */
+    public DeviceGroupQuery(
+            Map<ActorRef, String> actorToDeviceId,
+            Map<String, DeviceGroup.TemperatureReading> answered,
+            long requestID,
+            ActorRef requester,
+            FiniteDuration timeout,
+            double quorum,
+            FiniteDuration latencyTarget,
+            boolean followUp) {
+
         this.requestID = requestID;
         this.requester = requester;
         this.actorToDeviceId = actorToDeviceId;
+        this.stillWaiting = new HashSet<>(actorToDeviceId.keySet());
+        this.repliesSoFar = new HashMap<>((int) ((actorToDeviceId.size() + answered.size()) / 0.75f) + 1);
+        this.repliesSoFar.putAll(answered);
+        this.quorum = (int) Math.ceil(quorum * (actorToDeviceId.size() + answered.size()));
+        this.followUp = followUp;
 
         queryTimeoutTimer = getContext().getSystem().scheduler().scheduleOnce(
                 timeout,
                 getSelf(),
                 new CollectionTimeout(),
-                getContext().getSystem().getDispatcher(),
+                getContext().dispatcher(),
                 getSelf());
+        if (latencyTarget != null && latencyTarget.lt(timeout)) {
+            latencyTargetTimer = getContext().getSystem().scheduler().scheduleOnce(
+                    latencyTarget,
+                    getSelf(),
+                    new LatencyTargetReached(),
+                    getContext().dispatcher(),
+                    getSelf());
+        }
     }
 
     public static final class CollectionTimeout {}
 
+    public static final class LatencyTargetReached {}
+
     public static Props props(
             Map<ActorRef, String> actorToDeviceId,
             long requestID,
@@ -48,61 +103,107 @@ public class DeviceGroupQuery extends AbstractActor {
                 () -> new DeviceGroupQuery(actorToDeviceId, requestID, requester, timeout));
     }
 
+    /**
+     * runs on the query dispatcher of the settings, so large queries do not hold up ingestion
+     */
+    public static Props props(
+            Map<ActorRef, String> actorToDeviceId,
+            long requestID,
+            ActorRef requester,
+            FiniteDuration timeout,
+            IotSettings settings) {
+
+        return IotSettings.deploy(props(actorToDeviceId, requestID, requester, timeout), settings.queryDispatcher(), "");
+    }
+
+    /**
+     * a query for "request", with its timeout (or the one of the settings), quorum, latency
+     * target and follow-up, on the query dispatcher of the settings
+     */
+    static Props props(
+            Map<ActorRef, String> actorToDeviceId,
+            Map<String, DeviceGroup.TemperatureReading> answered,
+            DeviceGroup.RequestAllTemperatures request,
+            ActorRef requester,
+            IotSettings settings) {
+
+        FiniteDuration timeout = request.timeout != null ? request.timeout : settings.queryTimeout();
+        return IotSettings.deploy(
+                Props.create(DeviceGroupQuery.class, () -> new DeviceGroupQuery(
+                        actorToDeviceId,
+                        answered,
+                        request.requestId,
+                        requester,
+                        timeout,
+                        request.quorum,
+                        request.latencyTarget,
+                        request.followUp)),
+                settings.queryDispatcher(),
+                "");
+    }
+
     @Override
     public void preStart() {
+        if (stillWaiting.isEmpty()) {
+            reply();
+            return;
+        }
+        if (repliesSoFar.size() >= quorum) {
+            replyPartially();
+            if (lateReplies == null) {
+                return;
+            }
+        }
+
+        // messages are immutable, so every device can receive the same one
+        Device.ReadTemperature readTemperature = new Device.ReadTemperature(0L);
         for(ActorRef deviceActor : actorToDeviceId.keySet()) {
             getContext().watch(deviceActor);
-            deviceActor.tell(new Device.ReadTemperature(0L), getSelf());
+            deviceActor.tell(readTemperature, getSelf());
         }
     }
 
     @Override
     public void postStop() {
         queryTimeoutTimer.cancel();
+        if (latencyTargetTimer != null) {
+            latencyTargetTimer.cancel();
+        }
     }
 
     @Override
     public Receive createReceive() {
-        return waitingForReplies(new HashMap<>(), actorToDeviceId.keySet());
-    }
-
-    /**
-     * function that will be used by become() to hotswap the Receive obj on execution
-     * the "become(receive)" is called always on preStart() and get the Receive ojb from createReceive()
-     *
-     * @param repliesSoFar "updated" by become
-     * @param stillWaiting "updated" by become
-     * @return a brand new Receive that will handle the message
-     */
-    private Receive waitingForReplies(HashMap<String, DeviceGroup.TemperatureReading> repliesSoFar,
-                                      Set<ActorRef> stillWaiting) {
-
         return receiveBuilder()
                 .match(Device.RespondTemperature.class, r -> {
-                    DeviceGroup.TemperatureReading reading = r.value
-                            .map(v -> (DeviceGroup.TemperatureReading) new DeviceGroup.Temperature(v))
-                            .orElse(DeviceGroup.TemperatureNotAvailable.INSTANCE);
+                    DeviceGroup.TemperatureReading reading = r.hasValue()
+                            ? new DeviceGroup.Temperature(r.value)
+                            : DeviceGroup.TemperatureNotAvailable.INSTANCE;
 
-                    receivedResponse(getSender(), reading, stillWaiting, repliesSoFar);
+                    receivedResponse(getSender(), reading);
 
                 }).match(Terminated.class, r -> {
-                    receivedResponse(getSender(), DeviceGroup.DeviceNotAvailable.INSTANCE, stillWaiting, repliesSoFar);
+                    receivedResponse(getSender(), DeviceGroup.DeviceNotAvailable.INSTANCE);
 
                 }).match(CollectionTimeout.class, r -> {
-                    Map<String, DeviceGroup.TemperatureReading> replies = new HashMap<>(repliesSoFar);
-                    stillWaiting.stream().forEach(
-                            a -> replies.put(actorToDeviceId.get(a), DeviceGroup.DeviceTimedOut.INSTANCE));
+                    Map<String, DeviceGroup.TemperatureReading> replies = lateReplies != null ? lateReplies : repliesSoFar;
+                    for (ActorRef deviceActor : stillWaiting) {
+                        replies.put(actorToDeviceId.get(deviceActor), DeviceGroup.DeviceTimedOut.INSTANCE);
+                    }
+                    reply();
 
-                    requester.tell(new DeviceGroup.ReplyAllTemperatures(requestID, replies), getSelf());
-                    getContext().stop(getSelf());
+                }).match(LatencyTargetReached.class, r -> replyPartially()
 
-                }).build();
+                ).build();
     }
 
-    private void receivedResponse(ActorRef deviceActor,
-                                  DeviceGroup.TemperatureReading reading,
-                                  Set<ActorRef> stillWaiting,
-                                  HashMap<String, DeviceGroup.TemperatureReading> repliesSoFar) {
+    private void receivedResponse(ActorRef deviceActor, DeviceGroup.TemperatureReading reading) {
+
+        //
+        // a device may answer twice, or answer and then stop, so only its first answer counts
+        //
+        if (!stillWaiting.remove(deviceActor)) {
+            return;
+        }
 
         //
         // even after responding a temperature, this device can send a Terminated.class message
@@ -110,26 +211,38 @@ public class DeviceGroupQuery extends AbstractActor {
         //
         getContext().unwatch(deviceActor);
 
-        String deviceId = actorToDeviceId.get(deviceActor);
-
-        HashSet<ActorRef> newStillWaiting = new HashSet<>(stillWaiting);
-        newStillWaiting.remove(deviceActor);
-
-        HashMap<String, DeviceGroup.TemperatureReading> newRepliesSoFar = new HashMap<>(repliesSoFar);
-        newRepliesSoFar.put(deviceId, reading);
-
-        if(newStillWaiting.isEmpty()) {
-            requester.tell(new DeviceGroup.ReplyAllTemperatures(requestID, newRepliesSoFar), getSelf());
-            getContext().stop(getSelf());
+        if (lateReplies != null) {
+            lateReplies.put(actorToDeviceId.get(deviceActor), reading);
         } else {
+            repliesSoFar.put(actorToDeviceId.get(deviceActor), reading);
+        }
 
-            //
-            //Hot swapping: the returned Receive object is changed
-            //on the next device reply message, the new replies and waiting structures will be used
-            //
-            getContext().become(waitingForReplies(newRepliesSoFar, newStillWaiting));
+        if (stillWaiting.isEmpty()) {
+            reply();
+        } else if (repliesSoFar.size() >= quorum) {
+            replyPartially();
         }
     }
 
+    private void replyPartially() {
+        if (lateReplies != null) {
+            return;
+        }
+        requester.tell(new DeviceGroup.ReplyAllTemperatures(requestID, repliesSoFar, false), getSelf());
+        if (followUp) {
+            // repliesSoFar now belongs to the requester, and stays as it is
+            lateReplies = new HashMap<>();
+        } else {
+            getContext().stop(getSelf());
+        }
+    }
 
+    private void reply() {
+        if (lateReplies != null) {
+            requester.tell(new DeviceGroup.ReplyLateTemperatures(requestID, lateReplies), getSelf());
+        } else {
+            requester.tell(new DeviceGroup.ReplyAllTemperatures(requestID, repliesSoFar), getSelf());
+        }
+        getContext().stop(getSelf());
+    }
 }
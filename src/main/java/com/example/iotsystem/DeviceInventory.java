@@ -0,0 +1,77 @@
+package com.example.iotsystem;
+
+import akka.actor.ActorRef;
+import akka.pattern.Patterns;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+
+/**
+ * registers a known inventory of devices with a DeviceManager (or a sharded one) at startup,
+ * with one BulkTrackDevices per group instead of one RequestTrackDevice per device
+ *
+ * an inventory file has one "groupId,deviceId" per line, blank lines and lines starting with '#'
+ * are skipped; the devices get their actor with their first message, not when they are registered
+ */
+public final class DeviceInventory {
+
+    private DeviceInventory() {}
+
+    /**
+     * the device ids of every group, groups and devices in the order of the file
+     */
+    public static Map<String, List<String>> read(Path file) throws IOException {
+        Map<String, List<String>> deviceIdsByGroupId = new LinkedHashMap<>();
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            int lineNumber = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int comma = line.indexOf(',');
+                if (comma <= 0 || comma == line.length() - 1) {
+                    throw new IOException(file + ":" + lineNumber + ": expected groupId,deviceId but found " + line);
+                }
+                deviceIdsByGroupId
+                        .computeIfAbsent(line.substring(0, comma).trim(), g -> new ArrayList<>())
+                        .add(line.substring(comma + 1).trim());
+            }
+        }
+        return deviceIdsByGroupId;
+    }
+
+    /**
+     * completes with the number of devices of the file that were not tracked yet, or fails when
+     * a group does not answer within "timeout"
+     */
+    public static CompletionStage<Integer> register(ActorRef manager, Path file, Duration timeout) throws IOException {
+        return register(manager, read(file), timeout);
+    }
+
+    public static CompletionStage<Integer> register(ActorRef manager, Map<String, List<String>> deviceIdsByGroupId, Duration timeout) {
+        CompletableFuture<Integer> added = CompletableFuture.completedFuture(0);
+        long requestId = 0L;
+        for (Map.Entry<String, List<String>> group : deviceIdsByGroupId.entrySet()) {
+            DeviceManager.BulkTrackDevices bulk = new DeviceManager.BulkTrackDevices(
+                    requestId++, group.getKey(), group.getValue().toArray(new String[0]));
+            CompletionStage<Integer> tracked = Patterns.ask(manager, bulk, timeout)
+                    .thenApply(reply -> ((DeviceManager.DevicesTracked) reply).added);
+            added = added.thenCombine(tracked, Integer::sum);
+        }
+        return added;
+    }
+}
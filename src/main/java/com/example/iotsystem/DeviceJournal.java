@@ -0,0 +1,432 @@
+package com.example.iotsystem;
+
+import akka.actor.AbstractActor;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * writes the registry and the latest readings of a DeviceManager to a local directory, so that
+ * the manager rebuilds its groups and devices, with their readings, when it starts again
+ *
+ * the directory holds an append-only "journal.log" of registrations, removals and readings, and
+ * a "snapshot.bin" of the whole state; records are buffered and written with a single fsync every
+ * flush interval, so the writers are never blocked on the disk and a crash loses at most the last
+ * interval; once "snapshot-after" records were appended, the state is written to a new snapshot
+ * and the journal starts over, which bounds both the journal and the recovery time
+ *
+ * devices journal their reading when it changes, so a reading costs one message to this actor
+ */
+public class DeviceJournal extends AbstractActor {
+
+    private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+
+    static final String JOURNAL = "journal.log";
+    static final String SNAPSHOT = "snapshot.bin";
+    // in the directory of the settings, the number of shards journaling under it
+    static final String SHARDS = "shards";
+
+    static final byte REGISTERED = 1;
+    static final byte RECORDED = 2;
+    static final byte REMOVED = 3;
+    static final byte GROUP_REMOVED = 4;
+
+    final Path directory;
+    final FiniteDuration flushInterval;
+    final long snapshotAfter;
+
+    // the journaled state, recovered when the manager started and kept up to date for the snapshots
+    final Map<String, DeviceTable> state;
+
+    FileChannel journal;
+    ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    long recordsSinceSnapshot = 0;
+    Cancellable flushTimer;
+
+    public DeviceJournal(Path directory, Map<String, DeviceTable> state, IotSettings settings) {
+        this.directory = directory;
+        this.state = state;
+        this.flushInterval = settings.journalFlushInterval();
+        this.snapshotAfter = settings.journalSnapshotAfter();
+    }
+
+    /**
+     * "state" must be what recover returned for the same directory, the journal keeps changing it
+     * runs on the journal dispatcher of the settings, since it blocks on the disk
+     */
+    static Props props(Path directory, Map<String, DeviceTable> state, IotSettings settings) {
+        return IotSettings.deploy(
+                Props.create(DeviceJournal.class, () -> new DeviceJournal(directory, state, settings)),
+                settings.journalDispatcher(),
+                "");
+    }
+
+    public static final class Registered {
+        final String groupId;
+        final String deviceId;
+
+        public Registered(String groupId, String deviceId) {
+            this.groupId = groupId;
+            this.deviceId = deviceId;
+        }
+    }
+
+    public static final class Recorded {
+        final String groupId;
+        final String deviceId;
+        final double value;
+
+        public Recorded(String groupId, String deviceId, double value) {
+            this.groupId = groupId;
+            this.deviceId = deviceId;
+            this.value = value;
+        }
+    }
+
+    public static final class Removed {
+        final String groupId;
+        final String deviceId;
+
+        public Removed(String groupId, String deviceId) {
+            this.groupId = groupId;
+            this.deviceId = deviceId;
+        }
+    }
+
+    public static final class GroupRemoved {
+        final String groupId;
+
+        public GroupRemoved(String groupId) {
+            this.groupId = groupId;
+        }
+    }
+
+    private static final class Flush {}
+
+    @Override
+    public void preStart() throws IOException {
+        Files.createDirectories(directory);
+        journal = FileChannel.open(directory.resolve(JOURNAL),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    @Override
+    public void postStop() throws IOException {
+        if (flushTimer != null) {
+            flushTimer.cancel();
+        }
+        if (journal != null) {
+            flush();
+            journal.close();
+        }
+    }
+
+    //
+    // recovery
+    //
+
+    /**
+     * records the number of shards journaling under "directory" the first time, and fails when it
+     * changed since: the groups of a shard are routed by a hash over the shards, so with another
+     * count the groups recovered by a shard would no longer be the ones routed to it
+     *
+     * the shards of one manager start together and write the same count, each with an atomic move
+     */
+    static void checkShards(Path directory, int shards) throws IOException {
+        Path marker = directory.resolve(SHARDS);
+        if (!Files.exists(marker)) {
+            Files.createDirectories(directory);
+            Path written = Files.createTempFile(directory, SHARDS, ".tmp");
+            Files.write(written, Integer.toString(shards).getBytes(StandardCharsets.UTF_8));
+            Files.move(written, marker, StandardCopyOption.ATOMIC_MOVE);
+        }
+        int recorded = Integer.parseInt(new String(Files.readAllBytes(marker), StandardCharsets.UTF_8).trim());
+        if (recorded != shards) {
+            throw new IllegalStateException("the journal in " + directory + " was written by " + recorded
+                    + " shards, but the manager has " + shards + "; start it with " + recorded
+                    + " shards, or with an empty directory");
+        }
+    }
+
+    /**
+     * the state written to the directory: the snapshot, then the journal replayed on top of it
+     * a record torn by a crash ends the journal, and is cut off so the next records follow a whole one
+     */
+    static Map<String, DeviceTable> recover(Path directory) throws IOException {
+        Map<String, DeviceTable> state = new HashMap<>();
+
+        Path snapshot = directory.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot), 1 << 16))) {
+                int groups = in.readInt();
+                for (int g = 0; g < groups; g++) {
+                    DeviceTable table = new DeviceTable();
+                    state.put(readId(in), table);
+                    int devices = in.readInt();
+                    for (int d = 0; d < devices; d++) {
+                        int slot = table.add(readId(in));
+                        table.update(slot, in.readDouble());
+                    }
+                }
+            }
+        }
+
+        Path journal = directory.resolve(JOURNAL);
+        if (Files.exists(journal)) {
+            long whole = 0;
+            try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.READ)) {
+                CountingInputStream counting = new CountingInputStream(Channels.newInputStream(channel));
+                DataInputStream in = new DataInputStream(counting);
+                try {
+                    while (true) {
+                        replay(in, state);
+                        whole = counting.count;
+                    }
+                } catch (EOFException endOfJournal) {
+                    // the end, or a torn last record
+                }
+            }
+            try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+                if (channel.size() > whole) {
+                    channel.truncate(whole);
+                }
+            }
+        }
+        return state;
+    }
+
+    private static void replay(DataInputStream in, Map<String, DeviceTable> state) throws IOException {
+        byte type = in.readByte();
+        String groupId = readId(in);
+        switch (type) {
+            case REGISTERED:
+                state.computeIfAbsent(groupId, g -> new DeviceTable()).add(readId(in));
+                break;
+            case RECORDED: {
+                String deviceId = readId(in);
+                double value = in.readDouble();
+                DeviceTable table = state.get(groupId);
+                int slot = table != null ? table.slotOf(deviceId) : -1;
+                if (slot >= 0) {
+                    table.update(slot, value);
+                }
+                break;
+            }
+            case REMOVED: {
+                String deviceId = readId(in);
+                DeviceTable table = state.get(groupId);
+                if (table != null) {
+                    table.remove(deviceId);
+                }
+                break;
+            }
+            case GROUP_REMOVED:
+                state.remove(groupId);
+                break;
+            default:
+                throw new IOException("unknown journal record type " + type);
+        }
+    }
+
+    /**
+     * ids are written as their UTF-8 length on two bytes, then their UTF-8 bytes
+     */
+    private static String readId(DataInputStream in) throws IOException {
+        byte[] id = new byte[in.readUnsignedShort()];
+        in.readFully(id);
+        return new String(id, StandardCharsets.UTF_8);
+    }
+
+    private static void writeId(DataOutputStream out, String id) throws IOException {
+        byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * counts the bytes read, so recovery knows where the last whole record ends
+     * buffered itself, since a DataInputStream reads a field at a time
+     */
+    private static final class CountingInputStream extends InputStream {
+        final InputStream in;
+        final byte[] chunk = new byte[1 << 16];
+        int position = 0;
+        int limit = 0;
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            count++;
+            return chunk[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            int n = Math.min(len, limit - position);
+            System.arraycopy(chunk, position, b, off, n);
+            position += n;
+            count += n;
+            return n;
+        }
+
+        private boolean fill() throws IOException {
+            limit = Math.max(0, in.read(chunk));
+            position = 0;
+            return limit > 0;
+        }
+    }
+
+    //
+    // journaling
+    //
+
+    private void append(byte type, String groupId, String deviceId, double value) {
+        byte[] group = groupId.getBytes(StandardCharsets.UTF_8);
+        byte[] device = deviceId != null ? deviceId.getBytes(StandardCharsets.UTF_8) : null;
+        int size = 1 + 2 + group.length + (device != null ? 2 + device.length : 0) + (type == RECORDED ? 8 : 0);
+
+        if (buffer.remaining() < size) {
+            write();
+            if (buffer.capacity() < size) {
+                buffer = ByteBuffer.allocate(size);
+            }
+        }
+
+        buffer.put(type);
+        buffer.putShort((short) group.length).put(group);
+        if (device != null) {
+            buffer.putShort((short) device.length).put(device);
+        }
+        if (type == RECORDED) {
+            buffer.putDouble(value);
+        }
+
+        if (flushTimer == null) {
+            flushTimer = getContext().getSystem().scheduler().scheduleOnce(
+                    flushInterval, getSelf(), new Flush(), getContext().dispatcher(), getSelf());
+        }
+        if (++recordsSinceSnapshot >= snapshotAfter) {
+            snapshot();
+        }
+    }
+
+    private void write() {
+        try {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                journal.write(buffer);
+            }
+            buffer.clear();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void flush() {
+        flushTimer = null;
+        write();
+        try {
+            journal.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * written next to the current one and moved over it, then the journal starts over;
+     * a crash in between replays the old journal on the new snapshot, which changes nothing
+     */
+    private void snapshot() {
+        Path next = directory.resolve(SNAPSHOT + ".tmp");
+        try {
+            flush();
+            try (FileChannel channel = FileChannel.open(next,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+                out.writeInt(state.size());
+                for (Map.Entry<String, DeviceTable> group : state.entrySet()) {
+                    DeviceTable table = group.getValue();
+                    writeId(out, group.getKey());
+                    out.writeInt(table.size());
+                    for (int slot = 0; slot < table.slots; slot++) {
+                        if (table.deviceIds[slot] != null) {
+                            writeId(out, table.deviceIds[slot]);
+                            out.writeDouble(table.latest[slot]);
+                        }
+                    }
+                }
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(next, directory.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            journal.truncate(0);
+            journal.force(true);
+            recordsSinceSnapshot = 0;
+            log.debug("Snapshot of {} groups written to {}", state.size(), directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(Recorded.class, r -> {
+                    DeviceTable table = state.get(r.groupId);
+                    int slot = table != null ? table.slotOf(r.deviceId) : -1;
+                    if (slot >= 0) {
+                        table.update(slot, r.value);
+                        append(RECORDED, r.groupId, r.deviceId, r.value);
+                    }
+                })
+                .match(Registered.class, r -> {
+                    state.computeIfAbsent(r.groupId, g -> new DeviceTable()).add(r.deviceId);
+                    append(REGISTERED, r.groupId, r.deviceId, 0.0);
+                })
+                .match(Removed.class, r -> {
+                    DeviceTable table = state.get(r.groupId);
+                    if (table != null) {
+                        table.remove(r.deviceId);
+                    }
+                    append(REMOVED, r.groupId, r.deviceId, 0.0);
+                })
+                .match(GroupRemoved.class, r -> {
+                    state.remove(r.groupId);
+                    append(GROUP_REMOVED, r.groupId, null, 0.0);
+                })
+                .match(Flush.class, f -> flush())
+                .build();
+    }
+}
@@ -2,26 +2,140 @@ package com.example.iotsystem;
 
 import akka.actor.AbstractActor;
 import akka.actor.ActorRef;
+import akka.actor.Cancellable;
 import akka.actor.Props;
 import akka.actor.Terminated;
+import akka.dispatch.ControlMessage;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
+import akka.routing.ConsistentHashingPool;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 
 public class DeviceManager extends AbstractActor {
 
     private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+    final IotSettings settings;
     final Map<String, ActorRef> groupIdToActor = new HashMap<>();
     final Map<ActorRef, String> actorToGroupId = new HashMap<>();
 
+    // above 1 this manager is one of the routees of shardedProps, and its parent is the router
+    final int shards;
+
+    //
+    // backpressure: who sent readings since the last check, and the drops counted at that check
+    //
+    final Set<ActorRef> recentProducers = new HashSet<>();
+    long droppedAtLastCheck;
+    Cancellable backpressureTimer;
+
+    // the DeviceJournal child when settings.journalDirectory is set, null otherwise
+    ActorRef journal;
+
+    public DeviceManager(IotSettings settings) {
+        this(settings, 1);
+    }
+
+    DeviceManager(IotSettings settings, int shards) {
+        this.settings = IotSettings.orFromConfig(settings, getContext().getSystem());
+        this.shards = shards;
+    }
+
     public static Props props() {
-        return Props.create(DeviceManager.class, DeviceManager::new);
+        return props(null);
+    }
+
+    /**
+     * runs on the group dispatcher of the settings, null settings keep the default one
+     */
+    public static Props props(IotSettings settings) {
+        return deploy(Props.create(DeviceManager.class, () -> new DeviceManager(settings)), settings);
+    }
+
+    private static Props deploy(Props props, IotSettings settings) {
+        return settings != null ? IotSettings.deploy(props, settings.groupDispatcher(), "") : props;
+    }
+
+    /**
+     * a router over "shards" managers, each one owning the groups whose id hashes to it
+     *
+     * the router is not an actor with a mailbox: messages are routed on the sender's thread,
+     * so registrations and readings of different groups never wait for each other;
+     * RequestGroupIdList and RequestGroupActorList are gathered from all the shards
+     */
+    public static Props shardedProps(int shards, IotSettings settings) {
+        return new ConsistentHashingPool(shards)
+                .withHashMapper(DeviceManager::shardKey)
+                .props(deploy(Props.create(DeviceManager.class, () -> new DeviceManager(settings, shards)), settings));
+    }
+
+    static Object shardKey(Object message) {
+        if (message instanceof RequestTrackDevice) {
+            return ((RequestTrackDevice) message).groupId;
+        } else if (message instanceof BulkTrackDevices) {
+            return ((BulkTrackDevices) message).groupId;
+        } else if (message instanceof DeviceEnvelope) {
+            return ((DeviceEnvelope) message).groupId;
+        } else if (message instanceof RequestDeviceRef) {
+            return ((RequestDeviceRef) message).groupId;
+        } else if (message instanceof RecordTemperatureBatch) {
+            // a batch over several groups is split again by the shard receiving it
+            RecordTemperatureBatch batch = (RecordTemperatureBatch) message;
+            return batch.readings.isEmpty() ? batch.batchId : batch.readings.get(0).groupId;
+        } else if (message instanceof RequestGroupIdList) {
+            return ((RequestGroupIdList) message).requestId;
+        } else if (message instanceof RequestGroupActorList) {
+            return ((RequestGroupActorList) message).requestId;
+        }
+        return null;
+    }
+
+    /**
+     * asks a shard for its own groups only, the answer is a LocalGroups
+     */
+    static final class CollectLocalGroups {}
+
+    static final class LocalGroups {
+        final Set<String> ids;
+        final Set<ActorRef> actors;
+
+        LocalGroups(Set<String> ids, Set<ActorRef> actors) {
+            this.ids = ids;
+            this.actors = actors;
+        }
     }
 
-    public static final class RequestTrackDevice {
+    /**
+     * sent to the producers of readings when device mailboxes dropped some since the last check,
+     * only to those that asked for it with acceptsSlowDown on their batches or envelopes
+     * droppedReadings counts the drops of the whole actor system, not only those of the receiver
+     */
+    public static final class SlowDown {
+        public final long droppedReadings;
+
+        public SlowDown(long droppedReadings) {
+            this.droppedReadings = droppedReadings;
+        }
+    }
+
+    private static final class CheckBackpressure {}
+
+    /**
+     * a control message, so a device or dense group with a control aware mailbox
+     * registers it ahead of the readings already queued
+     */
+    public static final class RequestTrackDevice implements ControlMessage {
         public final String groupId;
         public final String deviceId;
 
@@ -33,6 +147,38 @@ public class DeviceManager extends AbstractActor {
 
     public static final class DeviceRegistered {}
 
+    /**
+     * tracks many devices of one group with a single message, answered with a single DevicesTracked
+     * the devices only get an actor with their first message, so a whole known inventory is
+     * registered at startup for the price of a table entry per device
+     */
+    public static final class BulkTrackDevices implements ControlMessage {
+        final long requestId;
+        public final String groupId;
+        final String[] deviceIds;
+
+        public BulkTrackDevices(long requestId, String groupId, String[] deviceIds) {
+            this.requestId = requestId;
+            this.groupId = groupId;
+            this.deviceIds = deviceIds;
+        }
+    }
+
+    /**
+     * "added" counts the devices of the request that were not tracked yet
+     */
+    public static final class DevicesTracked {
+        final long requestId;
+        public final String groupId;
+        public final int added;
+
+        public DevicesTracked(long requestId, String groupId, int added) {
+            this.requestId = requestId;
+            this.groupId = groupId;
+            this.added = added;
+        }
+    }
+
     public static final class RequestGroupIdList {
         final long requestId;
         public RequestGroupIdList(long requestId) {
@@ -67,6 +213,124 @@ public class DeviceManager extends AbstractActor {
         }
     }
 
+    public static final class Reading {
+        public final String groupId;
+        public final String deviceId;
+        public final long requestId;
+        public final double value;
+
+        public Reading(String groupId, String deviceId, long requestId, double value) {
+            this.groupId = groupId;
+            this.deviceId = deviceId;
+            this.requestId = requestId;
+            this.value = value;
+        }
+    }
+
+    /**
+     * a device message routed by group and device id, for producers that do not hold the device ActorRef
+     * the device replies to the original sender, who is also told SlowDown with acceptsSlowDown
+     */
+    public static final class DeviceEnvelope {
+        public final String groupId;
+        public final String deviceId;
+        public final Object message;
+        final boolean acceptsSlowDown;
+
+        public DeviceEnvelope(String groupId, String deviceId, Object message) {
+            this(groupId, deviceId, message, false);
+        }
+
+        public DeviceEnvelope(String groupId, String deviceId, Object message, boolean acceptsSlowDown) {
+            this.groupId = groupId;
+            this.deviceId = deviceId;
+            this.message = message;
+            this.acceptsSlowDown = acceptsSlowDown;
+        }
+    }
+
+    /**
+     * asks for the ActorRef of a tracked device, so later messages can skip DeviceManager and DeviceGroup
+     * the requester is told DeviceRefInvalidated when that device actor terminates
+     */
+    public static final class RequestDeviceRef {
+        final long requestId;
+        public final String groupId;
+        public final String deviceId;
+
+        public RequestDeviceRef(long requestId, String groupId, String deviceId) {
+            this.requestId = requestId;
+            this.groupId = groupId;
+            this.deviceId = deviceId;
+        }
+    }
+
+    /**
+     * empty when the device is not tracked, or when its group is dense and devices have no ActorRef
+     */
+    public static final class DeviceRefResolved {
+        final long requestId;
+        public final String groupId;
+        public final String deviceId;
+        public final Optional<ActorRef> device;
+
+        public DeviceRefResolved(long requestId, String groupId, String deviceId, Optional<ActorRef> device) {
+            this.requestId = requestId;
+            this.groupId = groupId;
+            this.deviceId = deviceId;
+            this.device = device;
+        }
+    }
+
+    /**
+     * the resolved ActorRef of this device is dead, it must be resolved again
+     */
+    public static final class DeviceRefInvalidated {
+        public final String groupId;
+        public final String deviceId;
+
+        public DeviceRefInvalidated(String groupId, String deviceId) {
+            this.groupId = groupId;
+            this.deviceId = deviceId;
+        }
+    }
+
+    /**
+     * many readings, possibly for many groups and devices, sent as a single message
+     * it is split by group and by device, so every device receives only one Device.RecordTemperatures
+     *
+     * with acceptsSlowDown, the sender is told SlowDown besides the acknowledgement, so it must not
+     * be an ask, which takes a single reply
+     */
+    public static final class RecordTemperatureBatch {
+        final long batchId;
+        final List<Reading> readings;
+        final boolean acceptsSlowDown;
+
+        public RecordTemperatureBatch(long batchId, List<Reading> readings) {
+            this(batchId, readings, false);
+        }
+
+        public RecordTemperatureBatch(long batchId, List<Reading> readings, boolean acceptsSlowDown) {
+            this.batchId = batchId;
+            this.readings = readings;
+            this.acceptsSlowDown = acceptsSlowDown;
+        }
+    }
+
+    /**
+     * the single acknowledgement of a batch, readings of unknown groups or devices are not accepted
+     */
+    public static final class TemperatureBatchRecorded {
+        final long batchId;
+        final long[] requestIds;
+
+        public TemperatureBatchRecorded(long batchId, long[] requestIds) {
+            this.batchId = batchId;
+            this.requestIds = requestIds;
+        }
+    }
+
     private void onTrackDevice(RequestTrackDevice msg) {
         ActorRef groupActor = groupIdToActor.get(msg.groupId);
 
@@ -74,46 +338,233 @@ public class DeviceManager extends AbstractActor {
             groupActor.forward(msg, getContext());
 
         } else {
-            groupActor = getContext().actorOf(DeviceGroup.props(msg.groupId), "group-" + msg.groupId);
-            groupIdToActor.put(msg.groupId, groupActor);
-            actorToGroupId.put(groupActor, msg.groupId);
-            getContext().watch(groupActor);
-            groupActor.forward(msg, getContext());
+            createGroup(msg.groupId, Collections.emptyMap()).forward(msg, getContext());
+        }
+    }
+
+    private void onBulkTrackDevices(BulkTrackDevices msg) {
+        ActorRef groupActor = groupIdToActor.get(msg.groupId);
+        if (groupActor == null) {
+            groupActor = createGroup(msg.groupId, Collections.emptyMap());
+        }
+        groupActor.forward(msg, getContext());
+    }
+
+    private ActorRef createGroup(String groupId, Map<String, Double> initialReadings) {
+        Props groupProps = settings.denseGroups()
+                ? DenseDeviceGroup.props(groupId, settings, journal, initialReadings)
+                : DeviceGroup.props(groupId, settings, journal, initialReadings);
+        ActorRef groupActor = getContext().actorOf(groupProps, "group-" + groupId);
+        groupIdToActor.put(groupId, groupActor);
+        actorToGroupId.put(groupActor, groupId);
+        getContext().watch(groupActor);
+        return groupActor;
+    }
+
+    private void onDeviceEnvelope(DeviceEnvelope envelope) {
+        rememberProducer(envelope.acceptsSlowDown);
+        ActorRef groupActor = groupIdToActor.get(envelope.groupId);
+        if (groupActor != null) {
+            groupActor.forward(envelope, getContext());
+        } else {
+            log.debug("Dropping {} for untracked group {}", envelope.message.getClass().getSimpleName(), envelope.groupId);
+        }
+    }
+
+    private void onRequestDeviceRef(RequestDeviceRef r) {
+        ActorRef groupActor = groupIdToActor.get(r.groupId);
+        if (groupActor != null) {
+            groupActor.forward(r, getContext());
+        } else {
+            getSender().tell(new DeviceRefResolved(r.requestId, r.groupId, r.deviceId, Optional.empty()), getSelf());
         }
     }
 
+    private void onTemperatureBatch(RecordTemperatureBatch batch) {
+        rememberProducer(batch.acceptsSlowDown);
+        if (shards > 1 && spansSeveralGroups(batch)) {
+            //
+            // other shards may own some of the groups, so every group gets its part through the router
+            // the parts do not ask for SlowDown: the collector stops with the acknowledgement, and
+            // this shard already remembered the producer, which it tells like any other
+            //
+            Map<String, List<Reading>> readingsByGroupId = new LinkedHashMap<>();
+            for (Reading reading : batch.readings) {
+                readingsByGroupId.computeIfAbsent(reading.groupId, g -> new ArrayList<>()).add(reading);
+            }
+
+            getContext().actorOf(DeviceBatchCollector.props(
+                    Collections.nCopies(readingsByGroupId.size(), getContext().getParent()),
+                    new ArrayList<>(readingsByGroupId.values()),
+                    batch.batchId,
+                    getSender(),
+                    settings.queryTimeout()));
+            return;
+        }
+
+        Map<ActorRef, List<Reading>> readingsByGroup = new HashMap<>();
+
+        for (Reading reading : batch.readings) {
+            ActorRef groupActor = groupIdToActor.get(reading.groupId);
+
+            // readings for groups that were never tracked are just not accepted
+            if (groupActor != null) {
+                readingsByGroup.computeIfAbsent(groupActor, g -> new ArrayList<>()).add(reading);
+            }
+        }
+
+        if (readingsByGroup.isEmpty()) {
+            getSender().tell(new TemperatureBatchRecorded(batch.batchId, new long[0]), getSelf());
+
+        } else if (readingsByGroup.size() == 1) {
+            //
+            // the usual case: a gateway reports for a single group, so the group acknowledges directly
+            //
+            Map.Entry<ActorRef, List<Reading>> single = readingsByGroup.entrySet().iterator().next();
+            single.getKey().forward(new RecordTemperatureBatch(batch.batchId, single.getValue()), getContext());
+
+        } else {
+            getContext().actorOf(DeviceBatchCollector.props(
+                    new ArrayList<>(readingsByGroup.keySet()),
+                    new ArrayList<>(readingsByGroup.values()),
+                    batch.batchId,
+                    getSender(),
+                    settings.queryTimeout()));
+        }
+    }
+
+    private static boolean spansSeveralGroups(RecordTemperatureBatch batch) {
+        for (Reading reading : batch.readings) {
+            if (!reading.groupId.equals(batch.readings.get(0).groupId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void onGroupIdList(RequestGroupIdList r) {
-        getSender().tell(new ReplyGroupIdList(r.requestId, this.groupIdToActor.keySet()), getSelf());
+        if (shards > 1) {
+            gatherFromShards(r);
+        } else {
+            getSender().tell(new ReplyGroupIdList(r.requestId, this.groupIdToActor.keySet()), getSelf());
+        }
     }
 
     private void onGroupActorList(RequestGroupActorList r) {
-        getSender().tell(new ReplyGroupActorList(r.requestId, this.actorToGroupId.keySet()), getSelf());
+        if (shards > 1) {
+            gatherFromShards(r);
+        } else {
+            getSender().tell(new ReplyGroupActorList(r.requestId, this.actorToGroupId.keySet()), getSelf());
+        }
+    }
+
+    private void gatherFromShards(Object request) {
+        Props queryProps = DeviceManagerQuery.props(
+                getContext().getParent(),
+                shards,
+                request,
+                getSender(),
+                settings.queryTimeout());
+        getContext().actorOf(IotSettings.deploy(queryProps, settings.queryDispatcher(), ""));
+    }
+
+    private void onCollectLocalGroups(CollectLocalGroups c) {
+        getSender().tell(
+                new LocalGroups(new HashSet<>(groupIdToActor.keySet()), new HashSet<>(actorToGroupId.keySet())),
+                getSelf());
     }
 
     private void onTerminated(Terminated t) {
         ActorRef act = t.getActor();
         String id = actorToGroupId.get(act);
-        log.info("Device group actor for {} has been terminated", id);
+        log.debug("Device group actor for {} has been terminated", id);
         actorToGroupId.remove(act);
         groupIdToActor.remove(id);
+        if (journal != null && id != null) {
+            journal.tell(new DeviceJournal.GroupRemoved(id), getSelf());
+        }
     }
 
     @Override
-    public void preStart() {
+    public void preStart() throws IOException {
+        if (!settings.journalDirectory().isEmpty()) {
+            recover();
+        }
+        if (settings.backpressureCheckInterval().toNanos() > 0) {
+            droppedAtLastCheck = IngestionMetrics.get(getContext().getSystem()).dropped();
+            backpressureTimer = getContext().getSystem().scheduler().schedule(
+                    settings.backpressureCheckInterval(),
+                    settings.backpressureCheckInterval(),
+                    getSelf(),
+                    new CheckBackpressure(),
+                    getContext().dispatcher(),
+                    getSelf());
+        }
         log.info("DeviceManager actor started");
     }
 
     @Override
     public void postStop() {
+        if (backpressureTimer != null) {
+            backpressureTimer.cancel();
+        }
         log.info("DeviceManager stopped");
     }
 
+    /**
+     * starts the journal, and the groups and devices it recorded with their last readings
+     * the shards of a sharded manager journal to their own subdirectory, and must be as many as
+     * the ones that wrote it
+     */
+    private void recover() throws IOException {
+        Path directory = Paths.get(settings.journalDirectory());
+        DeviceJournal.checkShards(directory, shards);
+        if (shards > 1) {
+            directory = directory.resolve(getSelf().path().name());
+        }
+        Map<String, DeviceTable> state = DeviceJournal.recover(directory);
+
+        // read before the journal starts changing the tables
+        Map<String, Map<String, Double>> initialReadings = new HashMap<>();
+        state.forEach((groupId, table) -> initialReadings.put(groupId, table.latestByDeviceId()));
+
+        journal = getContext().actorOf(DeviceJournal.props(directory, state, settings), "journal");
+        initialReadings.forEach(this::createGroup);
+        log.info("Recovered {} device groups from {}", initialReadings.size(), directory);
+    }
+
+    private void rememberProducer(boolean acceptsSlowDown) {
+        if (backpressureTimer != null
+                && acceptsSlowDown
+                && !getSender().equals(getContext().getSystem().deadLetters())) {
+            recentProducers.add(getSender());
+        }
+    }
+
+    private void onCheckBackpressure() {
+        long dropped = IngestionMetrics.get(getContext().getSystem()).dropped();
+        if (dropped > droppedAtLastCheck) {
+            SlowDown slowDown = new SlowDown(dropped - droppedAtLastCheck);
+            for (ActorRef producer : recentProducers) {
+                producer.tell(slowDown, getSelf());
+            }
+        }
+        droppedAtLastCheck = dropped;
+        recentProducers.clear();
+    }
+
     @Override
     public Receive createReceive() {
         return receiveBuilder()
                 .match(RequestTrackDevice.class, this::onTrackDevice)
+                .match(BulkTrackDevices.class, this::onBulkTrackDevices)
+                .match(DeviceEnvelope.class, this::onDeviceEnvelope)
+                .match(CheckBackpressure.class, c -> onCheckBackpressure())
+                .match(RequestDeviceRef.class, this::onRequestDeviceRef)
+                .match(RecordTemperatureBatch.class, this::onTemperatureBatch)
                 .match(RequestGroupIdList.class, this::onGroupIdList)
                 .match(RequestGroupActorList.class, this::onGroupActorList)
+                .match(CollectLocalGroups.class, this::onCollectLocalGroups)
                 .match(Terminated.class, this::onTerminated)
                 .build();
     }
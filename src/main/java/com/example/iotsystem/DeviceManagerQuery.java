@@ -0,0 +1,98 @@
+package com.example.iotsystem;
+
+import akka.actor.*;
+import akka.routing.Broadcast;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.HashSet;
+import java.util.Set;
+
+
+/**
+ * scatter-gather of RequestGroupIdList or RequestGroupActorList over the shards of a sharded DeviceManager
+ * every shard answers with its own groups, and the requester receives the union as a single reply
+ */
+public class DeviceManagerQuery extends AbstractActor {
+
+    final ActorRef router;
+    final Object request;
+    final ActorRef requester;
+
+    int stillWaiting;
+    final Set<String> ids = new HashSet<>();
+    final Set<ActorRef> actors = new HashSet<>();
+
+    Cancellable queryTimeoutTimer;
+
+    public DeviceManagerQuery(
+            ActorRef router,
+            int shards,
+            Object request,
+            ActorRef requester,
+            FiniteDuration timeout) {
+
+        this.router = router;
+        this.stillWaiting = shards;
+        this.request = request;
+        this.requester = requester;
+
+        queryTimeoutTimer = getContext().getSystem().scheduler().scheduleOnce(
+                timeout,
+                getSelf(),
+                new CollectionTimeout(),
+                getContext().dispatcher(),
+                getSelf());
+    }
+
+    public static final class CollectionTimeout {}
+
+    public static Props props(
+            ActorRef router,
+            int shards,
+            Object request,
+            ActorRef requester,
+            FiniteDuration timeout) {
+
+        return Props.create(
+                DeviceManagerQuery.class,
+                () -> new DeviceManagerQuery(router, shards, request, requester, timeout));
+    }
+
+    @Override
+    public void preStart() {
+        router.tell(new Broadcast(new DeviceManager.CollectLocalGroups()), getSelf());
+    }
+
+    @Override
+    public void postStop() {
+        queryTimeoutTimer.cancel();
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(DeviceManager.LocalGroups.class, r -> {
+                    ids.addAll(r.ids);
+                    actors.addAll(r.actors);
+                    if (--stillWaiting == 0) {
+                        reply();
+                    }
+
+                }).match(CollectionTimeout.class, r -> {
+                    // the groups of a shard that did not answer in time are left out
+                    reply();
+
+                }).build();
+    }
+
+    private void reply() {
+        if (request instanceof DeviceManager.RequestGroupIdList) {
+            requester.tell(new DeviceManager.ReplyGroupIdList(
+                    ((DeviceManager.RequestGroupIdList) request).requestId, ids), getSelf());
+        } else {
+            requester.tell(new DeviceManager.ReplyGroupActorList(
+                    ((DeviceManager.RequestGroupActorList) request).requestId, actors), getSelf());
+        }
+        getContext().stop(getSelf());
+    }
+}
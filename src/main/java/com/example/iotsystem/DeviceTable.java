@@ -0,0 +1,200 @@
+package com.example.iotsystem;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * the devices of one group indexed by a slot, with their latest reading in a primitive array
+ * and the running statistics of those readings (count, sum, min and max)
+ *
+ * slots of removed devices are reused, so the arrays only grow with the largest group size
+ * not thread safe, it belongs to a single DeviceGroup
+ */
+final class DeviceTable {
+
+    final Map<String, Integer> slotByDeviceId = new HashMap<>();
+    String[] deviceIds = new String[16];
+    double[] latest = new double[16];
+
+    // slots below "slots" that were freed, reused before growing
+    int[] freeSlots = new int[16];
+    int freeCount = 0;
+    int slots = 0;
+
+    int count = 0;
+    double sum = 0.0;
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+
+    // set when the device holding min (or max) moved inwards, so the next statistics recompute it
+    boolean minStale = false;
+    boolean maxStale = false;
+
+    int size() {
+        return slotByDeviceId.size();
+    }
+
+    /**
+     * the slot of the device, or -1 when it is not in the table
+     */
+    int slotOf(String deviceId) {
+        Integer slot = slotByDeviceId.get(deviceId);
+        return slot != null ? slot : -1;
+    }
+
+    /**
+     * the slot of the device, added without reading when it is not in the table yet
+     */
+    int add(String deviceId) {
+        int slot = slotOf(deviceId);
+        if (slot >= 0) {
+            return slot;
+        }
+
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            if (slots == deviceIds.length) {
+                deviceIds = Arrays.copyOf(deviceIds, slots * 2);
+                latest = Arrays.copyOf(latest, slots * 2);
+            }
+            slot = slots++;
+        }
+
+        deviceIds[slot] = deviceId;
+        latest[slot] = Device.NO_READING;
+        slotByDeviceId.put(deviceId, slot);
+        return slot;
+    }
+
+    void remove(String deviceId) {
+        Integer slot = slotByDeviceId.remove(deviceId);
+        if (slot != null) {
+            update(slot, Device.NO_READING);
+            deviceIds[slot] = null;
+
+            if (freeCount == freeSlots.length) {
+                freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+            }
+            freeSlots[freeCount++] = slot;
+        }
+    }
+
+    /**
+     * replaces the latest reading of the slot, keeping the statistics up to date in O(1)
+     * only a device leaving an extreme inwards (or losing its reading) leaves it to recompute
+     */
+    void update(int slot, double value) {
+        double previous = latest[slot];
+        latest[slot] = value;
+
+        if (!Double.isNaN(previous)) {
+            count--;
+            sum -= previous;
+            // an outward move, or none, is covered by the min and max below
+            if (previous == min && !(value <= previous)) {
+                minStale = true;
+            }
+            if (previous == max && !(value >= previous)) {
+                maxStale = true;
+            }
+        }
+
+        if (!Double.isNaN(value)) {
+            count++;
+            sum += value;
+            if (!minStale) {
+                min = Math.min(min, value);
+            }
+            if (!maxStale) {
+                max = Math.max(max, value);
+            }
+        }
+    }
+
+    Set<String> deviceIds() {
+        return new HashSet<>(slotByDeviceId.keySet());
+    }
+
+    /**
+     * every device with its reading, NO_READING when it has none, in slot order
+     */
+    Map<String, Double> latestByDeviceId() {
+        Map<String, Double> readings = new LinkedHashMap<>((int) (size() / 0.75f) + 1);
+        for (int slot = 0; slot < slots; slot++) {
+            if (deviceIds[slot] != null) {
+                readings.put(deviceIds[slot], latest[slot]);
+            }
+        }
+        return readings;
+    }
+
+    /**
+     * the devices that have a reading, with that reading
+     */
+    Map<String, Double> readings() {
+        Map<String, Double> readings = new HashMap<>();
+        for (int slot = 0; slot < slots; slot++) {
+            if (deviceIds[slot] != null && !Double.isNaN(latest[slot])) {
+                readings.put(deviceIds[slot], latest[slot]);
+            }
+        }
+        return readings;
+    }
+
+    /**
+     * the latest reading of every device, as RequestAllTemperatures answers it
+     */
+    Map<String, DeviceGroup.TemperatureReading> temperatures() {
+        Map<String, DeviceGroup.TemperatureReading> temperatures = new HashMap<>((int) (size() / 0.75f) + 1);
+        for (int slot = 0; slot < slots; slot++) {
+            if (deviceIds[slot] != null) {
+                double value = latest[slot];
+                temperatures.put(deviceIds[slot], Double.isNaN(value)
+                        ? DeviceGroup.TemperatureNotAvailable.INSTANCE
+                        : new DeviceGroup.Temperature(value));
+            }
+        }
+        return temperatures;
+    }
+
+    DeviceGroup.RespondGroupTemperatureStats statistics(long requestId) {
+        if (minStale || maxStale) {
+            recompute();
+        }
+
+        if (count == 0) {
+            return new DeviceGroup.RespondGroupTemperatureStats(
+                    requestId, 0, Device.NO_READING, Device.NO_READING, Device.NO_READING);
+        }
+        return new DeviceGroup.RespondGroupTemperatureStats(requestId, count, min, max, sum / count);
+    }
+
+    /**
+     * only needed after the device at an extreme moved inwards or lost its reading, it also resets
+     * the sum rounding drift
+     */
+    private void recompute() {
+        count = 0;
+        sum = 0.0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+
+        for (int slot = 0; slot < slots; slot++) {
+            double value = latest[slot];
+            if (deviceIds[slot] != null && !Double.isNaN(value)) {
+                count++;
+                sum += value;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+        minStale = false;
+        maxStale = false;
+    }
+}
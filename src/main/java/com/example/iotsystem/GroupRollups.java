@@ -0,0 +1,168 @@
+package com.example.iotsystem;
+
+import java.util.Arrays;
+
+
+/**
+ * tumbling window aggregates (count, min, max and sum) of every device of a group, for the
+ * last "retention" windows, indexed by the slot of the device in the DeviceTable of the group
+ *
+ * every device owns "retention" consecutive entries of flat primitive arrays, and a window goes
+ * to the entry of its number modulo retention, so recording is O(1) without any allocation and
+ * an entry still holding an older window is simply overwritten
+ *
+ * not thread safe, it belongs to a single group
+ */
+final class GroupRollups {
+
+    static final long NO_WINDOW = Long.MIN_VALUE;
+
+    final long windowMillis;
+    final int retention;
+
+    int slots = 0;
+    long[] windowStarts = new long[0];
+    int[] counts = new int[0];
+    double[] mins = new double[0];
+    double[] maxs = new double[0];
+    double[] sums = new double[0];
+
+    GroupRollups(long windowMillis, int retention) {
+        this.windowMillis = windowMillis;
+        this.retention = retention;
+    }
+
+    long windowStart(long timestamp) {
+        return Math.floorDiv(timestamp, windowMillis) * windowMillis;
+    }
+
+    private int entry(int slot, long windowStart) {
+        return slot * retention + (int) Math.floorMod(windowStart / windowMillis, (long) retention);
+    }
+
+    private void ensureSlot(int slot) {
+        if (slot < slots) {
+            return;
+        }
+        int grown = Math.max(slot + 1, slots * 2);
+        int length = grown * retention;
+        windowStarts = Arrays.copyOf(windowStarts, length);
+        Arrays.fill(windowStarts, slots * retention, length, NO_WINDOW);
+        counts = Arrays.copyOf(counts, length);
+        mins = Arrays.copyOf(mins, length);
+        maxs = Arrays.copyOf(maxs, length);
+        sums = Arrays.copyOf(sums, length);
+        slots = grown;
+    }
+
+    /**
+     * a single reading
+     */
+    void record(int slot, long timestamp, double value) {
+        merge(slot, windowStart(timestamp), 1, value, value, value);
+    }
+
+    /**
+     * an aggregate of readings of the same window, as reported by a device
+     */
+    void merge(int slot, long windowStart, int count, double min, double max, double sum) {
+        ensureSlot(slot);
+        int entry = entry(slot, windowStart);
+
+        if (windowStarts[entry] == windowStart) {
+            counts[entry] += count;
+            mins[entry] = Math.min(mins[entry], min);
+            maxs[entry] = Math.max(maxs[entry], max);
+            sums[entry] += sum;
+
+        } else if (windowStarts[entry] < windowStart) {
+            windowStarts[entry] = windowStart;
+            counts[entry] = count;
+            mins[entry] = min;
+            maxs[entry] = max;
+            sums[entry] = sum;
+        }
+        // else a window older than the retention, already overwritten
+    }
+
+    /**
+     * forgets the windows of a slot, before it is reused by another device
+     */
+    void clear(int slot) {
+        if (slot >= 0 && slot < slots) {
+            Arrays.fill(windowStarts, slot * retention, (slot + 1) * retention, NO_WINDOW);
+        }
+    }
+
+    /**
+     * the windows of the slot with from <= start < to, oldest first, merged by "resolution"
+     * (rounded up to a multiple of the window), empty windows left out
+     */
+    DeviceGroup.RespondRollups series(long requestId, int slot, long from, long to, long resolutionMillis) {
+        long resolution = Math.max(1L, (resolutionMillis + windowMillis - 1) / windowMillis) * windowMillis;
+        long first = Math.floorDiv(from, resolution) * resolution;
+
+        int capacity = slot >= 0 && slot < slots ? retention : 0;
+        long[] starts = new long[capacity];
+        int[] seriesCounts = new int[capacity];
+        double[] seriesMins = new double[capacity];
+        double[] seriesMaxs = new double[capacity];
+        double[] seriesMeans = new double[capacity];
+        int size = 0;
+
+        // only the windows still retained can be found, whatever "from" asks for
+        long lastRetained = slot >= 0 && slot < slots ? newestWindow(slot) : NO_WINDOW;
+        long oldestRetained = lastRetained - (retention - 1) * windowMillis;
+        if (lastRetained != NO_WINDOW) {
+            first = Math.max(first, Math.floorDiv(oldestRetained, resolution) * resolution);
+        }
+
+        long firstWindow = -Math.floorDiv(-from, windowMillis) * windowMillis;
+
+        for (long start = first; lastRetained != NO_WINDOW && start < to && start <= lastRetained; start += resolution) {
+            int count = 0;
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            double sum = 0.0;
+
+            for (long window = Math.max(start, firstWindow); window < Math.min(start + resolution, to); window += windowMillis) {
+                int entry = entry(slot, window);
+                if (windowStarts[entry] == window) {
+                    count += counts[entry];
+                    min = Math.min(min, mins[entry]);
+                    max = Math.max(max, maxs[entry]);
+                    sum += sums[entry];
+                }
+            }
+
+            if (count > 0) {
+                starts[size] = start;
+                seriesCounts[size] = count;
+                seriesMins[size] = min;
+                seriesMaxs[size] = max;
+                seriesMeans[size] = sum / count;
+                size++;
+            }
+        }
+
+        return new DeviceGroup.RespondRollups(
+                requestId,
+                Arrays.copyOf(starts, size),
+                Arrays.copyOf(seriesCounts, size),
+                Arrays.copyOf(seriesMins, size),
+                Arrays.copyOf(seriesMaxs, size),
+                Arrays.copyOf(seriesMeans, size));
+    }
+
+    static DeviceGroup.RespondRollups none(long requestId) {
+        return new DeviceGroup.RespondRollups(requestId, new long[0], new int[0], new double[0], new double[0], new double[0]);
+    }
+
+    private long newestWindow(int slot) {
+        long newest = NO_WINDOW;
+        for (int entry = slot * retention; entry < (slot + 1) * retention; entry++) {
+            newest = Math.max(newest, windowStarts[entry]);
+        }
+        return newest;
+    }
+}
@@ -0,0 +1,316 @@
+package com.example.iotsystem;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * the reading history of the devices of a group, in memory-mapped segment files of fixed-width
+ * columns (timestamp, device slot, value) instead of the heap of the actors
+ *
+ * a segment holds a header, then the timestamps (8 bytes each), the slots (4 bytes each) and the
+ * values (8 bytes each), each column contiguous; segments whose header says they are out of the
+ * queried range are skipped altogether, and in the others a range query only reads the timestamp
+ * and value of the rows of its slot, found in an index of the rows of every slot that is kept on
+ * the heap (4 bytes a row) and brought up to date by the queries
+ *
+ * rows are appended to the last segment, a full segment is forced to disk and a new one started,
+ * twice as large as the full one up to "segmentRows", so a quiet group keeps small files;
+ * segments whose newest reading is older than the retention are deleted when a new one starts
+ *
+ * device slots are numbered in the order devices first flush their history, and the ids are kept
+ * in "devices.bin" next to the segments, so the slots stay the same across restarts
+ *
+ * not thread safe, it belongs to a single group
+ */
+final class HistorySegments {
+
+    static final String DEVICES = "devices.bin";
+    static final String SEGMENT_PREFIX = "segment-";
+    static final String SEGMENT_SUFFIX = ".col";
+
+    // rows (int), capacity (int), oldest and newest timestamp (long), the rest is reserved
+    static final int HEADER = 32;
+    static final int ROWS = 0;
+    static final int CAPACITY = 4;
+    static final int MIN_TIMESTAMP = 8;
+    static final int MAX_TIMESTAMP = 16;
+
+    // 20 bytes per row, and the columns are addressed with int offsets into the mapped segment
+    static final int MAX_SEGMENT_ROWS = (Integer.MAX_VALUE - HEADER) / 20;
+
+    // the rows of the first segment of a group, 80 KB
+    static final int FIRST_SEGMENT_ROWS = 4096;
+
+    final Path directory;
+    final int segmentRows;
+    final long retentionMillis;
+
+    final Map<String, Integer> slotByDeviceId = new HashMap<>();
+    DataOutputStream deviceIds;
+
+    // oldest first, the last one is written to
+    final List<Segment> segments = new ArrayList<>();
+    long nextSequence = 0;
+
+    HistorySegments(Path directory, int segmentRows, long retentionMillis) {
+        this.directory = directory;
+        this.segmentRows = segmentRows;
+        this.retentionMillis = retentionMillis;
+    }
+
+    static final class Segment {
+        final Path path;
+        final MappedByteBuffer buffer;
+        final int capacity;
+
+        // the rows of every slot among the first "indexedRows" rows, in the order they were appended
+        int[][] rowsBySlot = new int[0][];
+        int[] rowCounts = new int[0];
+        int indexedRows = 0;
+
+        Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+            this.capacity = buffer.getInt(CAPACITY);
+        }
+
+        /**
+         * indexes the rows appended since the last query, the whole segment the first time
+         */
+        void index() {
+            int rows = rows();
+            for (int row = indexedRows; row < rows; row++) {
+                int slot = buffer.getInt(slotAt(row));
+                if (slot >= rowsBySlot.length) {
+                    int length = Math.max(rowsBySlot.length * 2, slot + 1);
+                    rowsBySlot = Arrays.copyOf(rowsBySlot, length);
+                    rowCounts = Arrays.copyOf(rowCounts, length);
+                }
+                if (rowsBySlot[slot] == null) {
+                    rowsBySlot[slot] = new int[16];
+                } else if (rowCounts[slot] == rowsBySlot[slot].length) {
+                    rowsBySlot[slot] = Arrays.copyOf(rowsBySlot[slot], rowCounts[slot] * 2);
+                }
+                rowsBySlot[slot][rowCounts[slot]++] = row;
+            }
+            indexedRows = rows;
+        }
+
+        int rows() {
+            return buffer.getInt(ROWS);
+        }
+
+        long minTimestamp() {
+            return buffer.getLong(MIN_TIMESTAMP);
+        }
+
+        long maxTimestamp() {
+            return buffer.getLong(MAX_TIMESTAMP);
+        }
+
+        int timestampAt(int row) {
+            return HEADER + 8 * row;
+        }
+
+        int slotAt(int row) {
+            return HEADER + 8 * capacity + 4 * row;
+        }
+
+        int valueAt(int row) {
+            return HEADER + 12 * capacity + 8 * row;
+        }
+    }
+
+    /**
+     * maps the segments already in the directory, the last one is written to again
+     */
+    void open() throws IOException {
+        Files.createDirectories(directory);
+
+        Path devices = directory.resolve(DEVICES);
+        if (Files.exists(devices)) {
+            byte[] ids = Files.readAllBytes(devices);
+            ByteArrayInputStream bytes = new ByteArrayInputStream(ids);
+            int whole = 0;
+            try (DataInputStream in = new DataInputStream(bytes)) {
+                while (true) {
+                    String deviceId = in.readUTF();
+                    slotByDeviceId.put(deviceId, slotByDeviceId.size());
+                    whole = ids.length - bytes.available();
+                }
+            } catch (EOFException endOfIds) {
+                // the end, or a torn last id, which no segment row used yet
+            }
+            // only the torn id is cut off, so the ids of the rows already written are never at risk
+            if (whole < ids.length) {
+                try (FileChannel channel = FileChannel.open(devices, StandardOpenOption.WRITE)) {
+                    channel.truncate(whole);
+                }
+            }
+        }
+        deviceIds = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(devices,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)));
+
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            files.forEach(paths::add);
+        }
+        paths.sort(null);
+        for (int i = 0; i < paths.size(); i++) {
+            segments.add(map(paths.get(i), i == paths.size() - 1));
+        }
+        if (!paths.isEmpty()) {
+            String last = paths.get(paths.size() - 1).getFileName().toString();
+            nextSequence = Long.parseLong(last.substring(SEGMENT_PREFIX.length(), last.length() - SEGMENT_SUFFIX.length())) + 1;
+        }
+        expire(System.currentTimeMillis());
+    }
+
+    void close() throws IOException {
+        if (!segments.isEmpty()) {
+            segments.get(segments.size() - 1).buffer.force();
+        }
+        if (deviceIds != null) {
+            deviceIds.close();
+        }
+    }
+
+    /**
+     * the slot of the device in the segments, given to it the first time it is asked for
+     */
+    int slotOf(String deviceId) {
+        Integer slot = slotByDeviceId.get(deviceId);
+        if (slot == null) {
+            slot = slotByDeviceId.size();
+            try {
+                deviceIds.writeUTF(deviceId);
+                deviceIds.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            slotByDeviceId.put(deviceId, slot);
+        }
+        return slot;
+    }
+
+    void append(int slot, long timestamp, double value) {
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || segment.rows() == segment.capacity) {
+            segment = roll(segment);
+        }
+        MappedByteBuffer buffer = segment.buffer;
+        int row = buffer.getInt(ROWS);
+        buffer.putLong(segment.timestampAt(row), timestamp);
+        buffer.putInt(segment.slotAt(row), slot);
+        buffer.putDouble(segment.valueAt(row), value);
+        buffer.putLong(MIN_TIMESTAMP, Math.min(buffer.getLong(MIN_TIMESTAMP), timestamp));
+        buffer.putLong(MAX_TIMESTAMP, Math.max(buffer.getLong(MAX_TIMESTAMP), timestamp));
+        // the row counts once it is whole
+        buffer.putInt(ROWS, row + 1);
+    }
+
+    /**
+     * readings of the slot with from <= timestamp < to, in the order they were appended
+     */
+    Device.RespondTemperatureHistory range(long requestId, int slot, long from, long to) {
+        long[] timestamps = new long[16];
+        double[] values = new double[16];
+        int found = 0;
+
+        for (Segment segment : segments) {
+            int rows = segment.rows();
+            if (rows == 0 || segment.maxTimestamp() < from || segment.minTimestamp() >= to) {
+                continue;
+            }
+            segment.index();
+            if (slot >= segment.rowsBySlot.length) {
+                continue;
+            }
+            int[] rowsOfSlot = segment.rowsBySlot[slot];
+            for (int i = 0; i < segment.rowCounts[slot]; i++) {
+                int row = rowsOfSlot[i];
+                long timestamp = segment.buffer.getLong(segment.timestampAt(row));
+                if (timestamp >= from && timestamp < to) {
+                    if (found == timestamps.length) {
+                        timestamps = Arrays.copyOf(timestamps, found * 2);
+                        values = Arrays.copyOf(values, found * 2);
+                    }
+                    timestamps[found] = timestamp;
+                    values[found] = segment.buffer.getDouble(segment.valueAt(row));
+                    found++;
+                }
+            }
+        }
+
+        return new Device.RespondTemperatureHistory(
+                requestId, Arrays.copyOf(timestamps, found), Arrays.copyOf(values, found));
+    }
+
+    private Segment roll(Segment full) {
+        if (full != null) {
+            full.buffer.force();
+        }
+        Path path = directory.resolve(String.format("%s%019d%s", SEGMENT_PREFIX, nextSequence++, SEGMENT_SUFFIX));
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            int capacity = (int) Math.min(segmentRows, full != null ? 2L * full.capacity : FIRST_SEGMENT_ROWS);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + 20L * capacity);
+            buffer.putInt(ROWS, 0);
+            buffer.putInt(CAPACITY, capacity);
+            buffer.putLong(MIN_TIMESTAMP, Long.MAX_VALUE);
+            buffer.putLong(MAX_TIMESTAMP, Long.MIN_VALUE);
+            Segment segment = new Segment(path, buffer);
+            segments.add(segment);
+            expire(System.currentTimeMillis());
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * deletes the segments, but the one written to, whose newest reading is older than the retention
+     * their mapping goes away with the buffer, the file is already unlinked
+     */
+    private void expire(long now) {
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            if (oldest.rows() > 0 && oldest.maxTimestamp() >= now - retentionMillis) {
+                break;
+            }
+            segments.remove(0);
+            try {
+                Files.deleteIfExists(oldest.path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static Segment map(Path path, boolean writable) throws IOException {
+        StandardOpenOption[] options = writable
+                ? new StandardOpenOption[] {StandardOpenOption.READ, StandardOpenOption.WRITE}
+                : new StandardOpenOption[] {StandardOpenOption.READ};
+        try (FileChannel channel = FileChannel.open(path, options)) {
+            return new Segment(path, channel.map(
+                    writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.iotsystem;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionId;
+import akka.actor.ExtensionIdProvider;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * counters of the readings dropped by BoundedDeviceMailbox, in total and for every running actor
+ * readable from any thread, DeviceManager polls the total to signal backpressure to the producers
+ */
+public final class IngestionMetrics implements Extension {
+
+    public static final Id ID = new Id();
+
+    public static final class Id extends AbstractExtensionId<IngestionMetrics> implements ExtensionIdProvider {
+
+        private Id() {}
+
+        @Override
+        public IngestionMetrics createExtension(ExtendedActorSystem system) {
+            return new IngestionMetrics();
+        }
+
+        @Override
+        public ExtensionId<? extends Extension> lookup() {
+            return ID;
+        }
+    }
+
+    public static IngestionMetrics get(ActorSystem system) {
+        return ID.get(system);
+    }
+
+    final LongAdder dropped = new LongAdder();
+    final ConcurrentHashMap<ActorRef, LongAdder> droppedByActor = new ConcurrentHashMap<>();
+
+    private IngestionMetrics() {}
+
+    /**
+     * readings dropped since the actor system started, including those of stopped actors
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * readings dropped by the mailbox of a running actor, 0 once it stopped
+     */
+    public long dropped(ActorRef actor) {
+        LongAdder counter = droppedByActor.get(actor);
+        return counter != null ? counter.sum() : 0L;
+    }
+
+    /**
+     * a counter for the mailbox of the owner, only counted in the total when there is no owner
+     */
+    Counter register(ActorRef owner) {
+        LongAdder counter = new LongAdder();
+        if (owner != null) {
+            droppedByActor.put(owner, counter);
+        }
+        return new Counter(owner, counter);
+    }
+
+    /**
+     * the drop counter of one mailbox, so a drop costs no map lookup
+     */
+    final class Counter {
+        final ActorRef owner;
+        final LongAdder ownDrops;
+
+        Counter(ActorRef owner, LongAdder ownDrops) {
+            this.owner = owner;
+            this.ownDrops = ownDrops;
+        }
+
+        void add(long n) {
+            ownDrops.add(n);
+            dropped.add(n);
+        }
+
+        void unregister() {
+            if (owner != null) {
+                droppedByActor.remove(owner, ownDrops);
+            }
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package com.example.iotsystem;
+
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import com.typesafe.config.Config;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * immutable options of the iot actors, handed down from DeviceManager to its groups and devices
+ * every "with" method returns a changed copy and the fields are only read through their accessors,
+ * so one instance can be shared by all actors
+ */
+public final class IotSettings implements Cloneable {
+
+    private Device.AckPolicy ackPolicy = Device.AckPolicy.always();
+    private int traceReadingsEvery = 0;
+    private int historyCapacity = 0;
+    // empty keeps the history in the devices
+    private String historyDirectory = "";
+    private int historySegmentRows = 1 << 20;
+    private FiniteDuration historyRetention = new FiniteDuration(30, TimeUnit.DAYS);
+    private FiniteDuration snapshotStaleness = Duration.Zero();
+    private FiniteDuration queryTimeout = new FiniteDuration(3, TimeUnit.SECONDS);
+    private FiniteDuration passivateAfter = Duration.Zero();
+    private boolean denseGroups = false;
+    private FiniteDuration rollupWindow = Duration.Zero();
+    private int rollupRetention = 1440;
+    private boolean publishLatest = false;
+    private FiniteDuration backpressureCheckInterval = Duration.Zero();
+
+    // empty for no persistence
+    private String journalDirectory = "";
+    private FiniteDuration journalFlushInterval = new FiniteDuration(100, TimeUnit.MILLISECONDS);
+    private long journalSnapshotAfter = 1000000;
+    // never empty, the journal blocks on the disk
+    private String journalDispatcher = "iot-system.dispatchers.persistence";
+
+    // dispatcher and mailbox ids, empty for the defaults of the actor system
+    private String deviceDispatcher = "";
+    private String deviceMailbox = "";
+    private String groupDispatcher = "";
+    private String queryDispatcher = "";
+
+    private IotSettings() {}
+
+    public static IotSettings defaults() {
+        return new IotSettings();
+    }
+
+    /**
+     * reads the "iot-system" section, whose defaults live in reference.conf
+     */
+    public static IotSettings create(Config config) {
+        Config iot = config.getConfig("iot-system");
+        IotSettings settings = new IotSettings();
+        settings.traceReadingsEvery = iot.getInt("device.trace-readings-every");
+        settings.historyCapacity = iot.getInt("device.history-capacity");
+        settings.historyDirectory = iot.getString("device.history-directory");
+        settings.historySegmentRows = checkSegmentRows(iot.getInt("device.history-segment-rows"));
+        settings.historyRetention = new FiniteDuration(
+                iot.getDuration("device.history-retention", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+        settings.publishLatest = iot.getBoolean("device.publish-latest");
+        settings.backpressureCheckInterval = new FiniteDuration(
+                iot.getDuration("ingestion.backpressure-check-interval", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+        settings.journalDirectory = iot.getString("persistence.directory");
+        settings.journalFlushInterval = new FiniteDuration(
+                iot.getDuration("persistence.flush-interval", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+        settings.journalSnapshotAfter = iot.getLong("persistence.snapshot-after");
+        settings.journalDispatcher = iot.getString("persistence.dispatcher");
+        settings.snapshotStaleness = new FiniteDuration(
+                iot.getDuration("group.snapshot-staleness", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+        settings.denseGroups = iot.getBoolean("group.dense");
+        settings.queryTimeout = new FiniteDuration(
+                iot.getDuration("group.query-timeout", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+        settings.passivateAfter = new FiniteDuration(
+                iot.getDuration("group.passivate-after", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+        settings.rollupWindow = new FiniteDuration(
+                iot.getDuration("group.rollup-window", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+        settings.rollupRetention = iot.getInt("group.rollup-retention");
+        settings.deviceDispatcher = iot.getString("device.dispatcher");
+        settings.deviceMailbox = iot.getString("device.mailbox");
+        settings.groupDispatcher = iot.getString("group.dispatcher");
+        settings.queryDispatcher = iot.getString("query.dispatcher");
+        return settings;
+    }
+
+    /**
+     * the given settings, or the ones configured for the actor system when none were given
+     */
+    static IotSettings orFromConfig(IotSettings settings, ActorSystem system) {
+        return settings != null ? settings : create(system.settings().config());
+    }
+
+    /**
+     * the props with the given dispatcher and mailbox, each one left alone when empty
+     */
+    static Props deploy(Props props, String dispatcher, String mailbox) {
+        if (!dispatcher.isEmpty()) {
+            props = props.withDispatcher(dispatcher);
+        }
+        if (!mailbox.isEmpty()) {
+            props = props.withMailbox(mailbox);
+        }
+        return props;
+    }
+
+    Device.AckPolicy ackPolicy() {
+        return ackPolicy;
+    }
+
+    int traceReadingsEvery() {
+        return traceReadingsEvery;
+    }
+
+    int historyCapacity() {
+        return historyCapacity;
+    }
+
+    String historyDirectory() {
+        return historyDirectory;
+    }
+
+    int historySegmentRows() {
+        return historySegmentRows;
+    }
+
+    FiniteDuration historyRetention() {
+        return historyRetention;
+    }
+
+    FiniteDuration snapshotStaleness() {
+        return snapshotStaleness;
+    }
+
+    FiniteDuration queryTimeout() {
+        return queryTimeout;
+    }
+
+    FiniteDuration passivateAfter() {
+        return passivateAfter;
+    }
+
+    boolean denseGroups() {
+        return denseGroups;
+    }
+
+    FiniteDuration rollupWindow() {
+        return rollupWindow;
+    }
+
+    int rollupRetention() {
+        return rollupRetention;
+    }
+
+    boolean publishLatest() {
+        return publishLatest;
+    }
+
+    FiniteDuration backpressureCheckInterval() {
+        return backpressureCheckInterval;
+    }
+
+    String journalDirectory() {
+        return journalDirectory;
+    }
+
+    FiniteDuration journalFlushInterval() {
+        return journalFlushInterval;
+    }
+
+    long journalSnapshotAfter() {
+        return journalSnapshotAfter;
+    }
+
+    String journalDispatcher() {
+        return journalDispatcher;
+    }
+
+    String deviceDispatcher() {
+        return deviceDispatcher;
+    }
+
+    String deviceMailbox() {
+        return deviceMailbox;
+    }
+
+    String groupDispatcher() {
+        return groupDispatcher;
+    }
+
+    String queryDispatcher() {
+        return queryDispatcher;
+    }
+
+    public IotSettings withAckPolicy(Device.AckPolicy ackPolicy) {
+        IotSettings copy = copy();
+        copy.ackPolicy = ackPolicy;
+        return copy;
+    }
+
+    public IotSettings withTraceReadingsEvery(int n) {
+        IotSettings copy = copy();
+        copy.traceReadingsEvery = n;
+        return copy;
+    }
+
+    /**
+     * number of readings every device keeps for ReadTemperatureHistory, 0 keeps none
+     */
+    public IotSettings withHistoryCapacity(int capacity) {
+        IotSettings copy = copy();
+        copy.historyCapacity = capacity;
+        return copy;
+    }
+
+    /**
+     * groups keep the history of their devices in memory-mapped segments of at most "segmentRows"
+     * readings, growing from a small first one, under "directory", for at least "retention"; the history capacity of the devices is then
+     * the number of readings they buffer before they hand them to their group
+     */
+    public IotSettings withHistorySegments(String directory, int segmentRows, FiniteDuration retention) {
+        IotSettings copy = copy();
+        copy.historyDirectory = directory;
+        copy.historySegmentRows = checkSegmentRows(segmentRows);
+        copy.historyRetention = retention;
+        return copy;
+    }
+
+    /**
+     * devices publish their latest reading into the LatestTemperatures extension of the actor system
+     */
+    public IotSettings withPublishLatest(boolean publish) {
+        IotSettings copy = copy();
+        copy.publishLatest = publish;
+        return copy;
+    }
+
+    /**
+     * how often DeviceManager looks for readings dropped by BoundedDeviceMailbox and tells its
+     * recent producers that accept it to slow down, zero never looks
+     */
+    public IotSettings withBackpressureCheckInterval(FiniteDuration interval) {
+        IotSettings copy = copy();
+        copy.backpressureCheckInterval = interval;
+        return copy;
+    }
+
+    /**
+     * DeviceManager journals its groups, devices and their latest readings to the directory, and
+     * rebuilds them from it when it starts, see DeviceJournal; an empty directory persists nothing
+     */
+    public IotSettings withJournal(String directory, FiniteDuration flushInterval, long snapshotAfter) {
+        IotSettings copy = copy();
+        copy.journalDirectory = directory;
+        copy.journalFlushInterval = flushInterval;
+        copy.journalSnapshotAfter = snapshotAfter;
+        return copy;
+    }
+
+    /**
+     * dispatcher of the DeviceJournal, which writes and fsyncs the journal and its snapshots
+     * a thread pool of its own by default, so the disk never blocks the threads of the other actors
+     */
+    public IotSettings withJournalDispatcher(String dispatcherId) {
+        IotSettings copy = copy();
+        copy.journalDispatcher = dispatcherId;
+        return copy;
+    }
+
+    /**
+     * groups stop the actor of a device that got no message for that long, zero never does
+     * the device keeps being tracked with its last reading, and gets a new actor with its next message
+     * devices whose ActorRef was handed out with DeviceRegistered, or with subscribers, are never stopped
+     */
+    public IotSettings withPassivateAfter(FiniteDuration idle) {
+        IotSettings copy = copy();
+        copy.passivateAfter = idle;
+        return copy;
+    }
+
+    /**
+     * how long RequestAllTemperatures waits for the devices when the request does not say, and
+     * how long the manager waits for its shards and for the groups of a batch
+     */
+    public IotSettings withQueryTimeout(FiniteDuration timeout) {
+        IotSettings copy = copy();
+        copy.queryTimeout = timeout;
+        return copy;
+    }
+
+    /**
+     * how old the cached answer of RequestAllTemperatures may be, zero always asks the devices
+     */
+    public IotSettings withSnapshotStaleness(FiniteDuration staleness) {
+        IotSettings copy = copy();
+        copy.snapshotStaleness = staleness;
+        return copy;
+    }
+
+    /**
+     * groups keep the count, min, max and sum of the readings of every device per tumbling window,
+     * for the last "retention" windows, a zero window keeps none
+     */
+    public IotSettings withRollups(FiniteDuration window, int retention) {
+        if (retention < 1) {
+            throw new IllegalArgumentException("retention must be positive, but was " + retention);
+        }
+        IotSettings copy = copy();
+        copy.rollupWindow = window;
+        copy.rollupRetention = retention;
+        return copy;
+    }
+
+    /**
+     * DeviceManager creates DenseDeviceGroup actors, which keep their devices in arrays instead of actors
+     */
+    public IotSettings withDenseGroups(boolean dense) {
+        IotSettings copy = copy();
+        copy.denseGroups = dense;
+        return copy;
+    }
+
+    /**
+     * dispatcher of the devices and of the dense groups, which do the work of their devices
+     */
+    public IotSettings withDeviceDispatcher(String dispatcherId) {
+        IotSettings copy = copy();
+        copy.deviceDispatcher = dispatcherId;
+        return copy;
+    }
+
+    /**
+     * mailbox of the devices and of the dense groups, e.g. "iot-system.mailboxes.device-control-aware"
+     */
+    public IotSettings withDeviceMailbox(String mailboxId) {
+        IotSettings copy = copy();
+        copy.deviceMailbox = mailboxId;
+        return copy;
+    }
+
+    /**
+     * dispatcher of the managers and of the groups, which mostly handle registrations and lifecycle
+     */
+    public IotSettings withGroupDispatcher(String dispatcherId) {
+        IotSettings copy = copy();
+        copy.groupDispatcher = dispatcherId;
+        return copy;
+    }
+
+    /**
+     * dispatcher of DeviceGroupQuery and DeviceManagerQuery
+     */
+    public IotSettings withQueryDispatcher(String dispatcherId) {
+        IotSettings copy = copy();
+        copy.queryDispatcher = dispatcherId;
+        return copy;
+    }
+
+    /**
+     * a segment is mapped as one buffer, so it must stay below 2 GB
+     */
+    private static int checkSegmentRows(int segmentRows) {
+        if (segmentRows < 1 || segmentRows > HistorySegments.MAX_SEGMENT_ROWS) {
+            throw new IllegalArgumentException("history segment rows must be between 1 and "
+                    + HistorySegments.MAX_SEGMENT_ROWS + ", but was " + segmentRows);
+        }
+        return segmentRows;
+    }
+
+    private IotSettings copy() {
+        try {
+            return (IotSettings) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.iotsystem;
+
+import akka.Done;
+import akka.NotUsed;
+import akka.actor.ActorRef;
+import akka.pattern.Patterns;
+import akka.stream.javadsl.Flow;
+import akka.stream.javadsl.Keep;
+import akka.stream.javadsl.Sink;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+
+
+/**
+ * Akka Streams stages delivering a stream of readings to a DeviceManager (or a sharded one)
+ *
+ * readings are collected for at most maxBatchDelay or maxBatchSize readings, split by group,
+ * and every group part is sent as one RecordTemperatureBatch with ask: a single group batch
+ * is forwarded by the manager straight to its group, which splits it again by device into
+ * one RecordTemperatures per device, so a device handles one message per batch
+ *
+ * at most "parallelism" batches are waiting for their acknowledgement, and the stream pulls
+ * no more readings until one is acknowledged, so a slow manager or group slows the producer down
+ * instead of filling mailboxes; an acknowledgement that does not come within askTimeout fails the stream
+ */
+public final class IotStreams {
+
+    private IotStreams() {}
+
+    /**
+     * emits the acknowledgement of every batch, whose requestIds are the readings that were recorded
+     * (readings of devices that were not tracked are not)
+     */
+    public static Flow<DeviceManager.Reading, DeviceManager.TemperatureBatchRecorded, NotUsed> ingestionFlow(
+            ActorRef manager,
+            int maxBatchSize,
+            FiniteDuration maxBatchDelay,
+            int parallelism,
+            FiniteDuration askTimeout) {
+
+        Duration timeout = Duration.ofNanos(askTimeout.toNanos());
+
+        return Flow.<DeviceManager.Reading>create()
+                .groupedWithin(maxBatchSize, Duration.ofNanos(maxBatchDelay.toNanos()))
+                .statefulMapConcat(() -> {
+                    // batch ids only need to be unique for one materialization
+                    long[] nextBatchId = {0L};
+                    return readings -> splitByGroup(readings, nextBatchId);
+                })
+                .mapAsyncUnordered(parallelism, batch -> recorded(Patterns.ask(manager, batch, timeout)));
+    }
+
+    /**
+     * ingestionFlow without the acknowledgements, completed when the last batch was acknowledged
+     */
+    public static Sink<DeviceManager.Reading, CompletionStage<Done>> ingestionSink(
+            ActorRef manager,
+            int maxBatchSize,
+            FiniteDuration maxBatchDelay,
+            int parallelism,
+            FiniteDuration askTimeout) {
+
+        return ingestionFlow(manager, maxBatchSize, maxBatchDelay, parallelism, askTimeout)
+                .toMat(Sink.ignore(), Keep.right());
+    }
+
+    /**
+     * one batch per group, in the order the groups first appear, readings keep their arrival order
+     */
+    static List<DeviceManager.RecordTemperatureBatch> splitByGroup(List<DeviceManager.Reading> readings, long[] nextBatchId) {
+        Map<String, List<DeviceManager.Reading>> readingsByGroupId = new LinkedHashMap<>();
+        for (DeviceManager.Reading reading : readings) {
+            readingsByGroupId.computeIfAbsent(reading.groupId, g -> new ArrayList<>()).add(reading);
+        }
+
+        List<DeviceManager.RecordTemperatureBatch> batches = new ArrayList<>(readingsByGroupId.size());
+        for (List<DeviceManager.Reading> groupReadings : readingsByGroupId.values()) {
+            batches.add(new DeviceManager.RecordTemperatureBatch(nextBatchId[0]++, groupReadings));
+        }
+        return batches;
+    }
+
+    private static CompletionStage<DeviceManager.TemperatureBatchRecorded> recorded(CompletionStage<Object> reply) {
+        return reply.thenApply(DeviceManager.TemperatureBatchRecorded.class::cast);
+    }
+}
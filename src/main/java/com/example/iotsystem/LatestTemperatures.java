@@ -0,0 +1,110 @@
+package com.example.iotsystem;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionId;
+import akka.actor.ExtensionIdProvider;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+
+/**
+ * the latest reading of every publishing device, readable from any thread without a message
+ *
+ * devices publish only when the settings ask for it (iot-system.device.publish-latest), each
+ * into a slot of its own that no other actor writes, so a reading is a plain ordered store and
+ * a read is two map lookups and a volatile load; what is read may be a few readings behind the
+ * device, but it is never torn and never goes back in time
+ *
+ *   double value = LatestTemperatures.get(system).latest("group", "device");
+ */
+public final class LatestTemperatures implements Extension {
+
+    public static final Id ID = new Id();
+
+    public static final class Id extends AbstractExtensionId<LatestTemperatures> implements ExtensionIdProvider {
+
+        private Id() {}
+
+        @Override
+        public LatestTemperatures createExtension(ExtendedActorSystem system) {
+            return new LatestTemperatures();
+        }
+
+        @Override
+        public ExtensionId<? extends Extension> lookup() {
+            return ID;
+        }
+    }
+
+    public static LatestTemperatures get(ActorSystem system) {
+        return ID.get(system);
+    }
+
+    final ConcurrentHashMap<String, ConcurrentHashMap<String, Slot>> slotsByGroupId = new ConcurrentHashMap<>();
+
+    private LatestTemperatures() {}
+
+    /**
+     * the latest published reading of the device, Device.NO_READING when it has none
+     * or does not publish
+     */
+    public double latest(String groupId, String deviceId) {
+        ConcurrentHashMap<String, Slot> group = slotsByGroupId.get(groupId);
+        Slot slot = group != null ? group.get(deviceId) : null;
+        return slot != null ? slot.get() : Device.NO_READING;
+    }
+
+    /**
+     * a new slot for the device, replacing the one of a previous incarnation
+     * only the registering actor may write into it
+     */
+    Slot register(String groupId, String deviceId) {
+        Slot slot = new Slot();
+        slotsByGroupId.computeIfAbsent(groupId, g -> new ConcurrentHashMap<>()).put(deviceId, slot);
+        return slot;
+    }
+
+    /**
+     * removes the slot, unless another incarnation of the device registered since
+     */
+    void unregister(String groupId, String deviceId, Slot slot) {
+        ConcurrentHashMap<String, Slot> group = slotsByGroupId.get(groupId);
+        if (group != null) {
+            group.remove(deviceId, slot);
+        }
+    }
+
+    /**
+     * removes the slot of the device whoever registered it, for the group that stops tracking it
+     */
+    void unregister(String groupId, String deviceId) {
+        ConcurrentHashMap<String, Slot> group = slotsByGroupId.get(groupId);
+        if (group != null) {
+            group.remove(deviceId);
+        }
+    }
+
+    /**
+     * a single writer cell: the double is kept as its raw bits in a long, so lazySet publishes it
+     * without the full fence of a volatile write, and the reader still sees it whole
+     */
+    static final class Slot {
+
+        private static final AtomicLongFieldUpdater<Slot> BITS =
+                AtomicLongFieldUpdater.newUpdater(Slot.class, "bits");
+
+        private volatile long bits = Double.doubleToRawLongBits(Device.NO_READING);
+
+        void set(double value) {
+            BITS.lazySet(this, Double.doubleToRawLongBits(value));
+        }
+
+        double get() {
+            return Double.longBitsToDouble(bits);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.iotsystem;
+
+import java.util.Arrays;
+
+
+/**
+ * the last "capacity" readings of a device in two primitive ring buffers
+ *
+ * its size never changes after construction: 16 bytes per sample, no object per sample
+ * not thread safe, it belongs to a single actor
+ */
+final class TemperatureHistory {
+
+    final long[] timestamps;
+    final double[] values;
+
+    // index of the oldest sample and number of samples kept
+    int head = 0;
+    int size = 0;
+
+    TemperatureHistory(int capacity) {
+        this.timestamps = new long[capacity];
+        this.values = new double[capacity];
+    }
+
+    void record(long timestamp, double value) {
+        int capacity = values.length;
+        int tail = (head + size) % capacity;
+        timestamps[tail] = timestamp;
+        values[tail] = value;
+
+        if (size < capacity) {
+            size++;
+        } else {
+            // full, so the oldest sample was just overwritten
+            head = (head + 1) % capacity;
+        }
+    }
+
+    boolean isFull() {
+        return size == values.length;
+    }
+
+    void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * samples with from <= timestamp < to, oldest first
+     */
+    Device.RespondTemperatureHistory range(long requestId, long from, long to) {
+        long[] foundTimestamps = new long[size];
+        double[] foundValues = new double[size];
+        int found = 0;
+
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % values.length;
+            long timestamp = timestamps[index];
+            if (timestamp >= from && timestamp < to) {
+                foundTimestamps[found] = timestamp;
+                foundValues[found] = values[index];
+                found++;
+            }
+        }
+
+        return new Device.RespondTemperatureHistory(
+                requestId, Arrays.copyOf(foundTimestamps, found), Arrays.copyOf(foundValues, found));
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.iotsystem;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * the subscribers of a Device or of a DeviceGroup, and what each one was last told
+ *
+ * a change is pushed as Device.TemperatureChanged when it moved at least "deadband" away from the
+ * value last pushed to that subscriber for that device; with a minimum interval, changes arriving
+ * sooner than that after the previous push are conflated, only the latest value of every device
+ * being pushed when the interval is over
+ *
+ * not thread safe, it belongs to its actor, which must handle Flush and the Terminated of the
+ * subscribers, who are watched
+ */
+final class TemperatureSubscriptions {
+
+    final String groupId;
+    final Map<ActorRef, Subscription> subscriptions = new HashMap<>();
+
+    TemperatureSubscriptions(String groupId) {
+        this.groupId = groupId;
+    }
+
+    static final class Subscription {
+        final ActorRef subscriber;
+        final double deadband;
+        final long minIntervalNanos;
+
+        final Map<String, Double> lastPushed = new HashMap<>();
+        long lastPushAt;
+
+        // conflated changes waiting for the interval to be over, null when there are none
+        Map<String, Double> pending;
+        Cancellable flushTimer;
+
+        Subscription(ActorRef subscriber, double deadband, long minIntervalNanos) {
+            this.subscriber = subscriber;
+            this.deadband = deadband;
+            this.minIntervalNanos = minIntervalNanos;
+            this.lastPushAt = System.nanoTime() - minIntervalNanos;
+        }
+    }
+
+    /**
+     * the owner pushes the conflated changes of the subscriber
+     */
+    static final class Flush {
+        final ActorRef subscriber;
+
+        Flush(ActorRef subscriber) {
+            this.subscriber = subscriber;
+        }
+    }
+
+    /**
+     * subscribes the sender, replacing its previous subscription, and tells it the current values
+     * that are known, so it does not have to read them first
+     */
+    void subscribe(Device.SubscribeTemperature s, Map<String, Double> current, AbstractActor.ActorContext context) {
+        ActorRef subscriber = context.sender();
+        Subscription subscription = new Subscription(subscriber, s.deadband, s.minInterval.toNanos());
+        cancel(subscriptions.put(subscriber, subscription));
+        context.watch(subscriber);
+        subscriber.tell(new Device.TemperatureSubscribed(s.requestId), context.self());
+        // only to the new subscriber, the others were told these values already; the next change
+        // waits for the interval as after any other push
+        current.forEach((deviceId, value) -> {
+            if (!Double.isNaN(value)) {
+                push(subscription, deviceId, value, context);
+                subscription.lastPushAt = System.nanoTime();
+            }
+        });
+    }
+
+    void unsubscribe(ActorRef subscriber, AbstractActor.ActorContext context) {
+        Subscription subscription = subscriptions.remove(subscriber);
+        if (subscription != null) {
+            cancel(subscription);
+            context.unwatch(subscriber);
+        }
+    }
+
+    void changed(String deviceId, double value, AbstractActor.ActorContext context) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        long now = System.nanoTime();
+
+        for (Subscription subscription : subscriptions.values()) {
+            Double last = subscription.lastPushed.get(deviceId);
+            if (last != null && Math.abs(value - last) < subscription.deadband) {
+                // back within the deadband, a conflated change is no longer worth pushing
+                if (subscription.pending != null) {
+                    subscription.pending.remove(deviceId);
+                }
+                continue;
+            }
+
+            if (subscription.pending == null && now - subscription.lastPushAt >= subscription.minIntervalNanos) {
+                push(subscription, deviceId, value, context);
+                subscription.lastPushAt = now;
+
+            } else {
+                if (subscription.pending == null) {
+                    subscription.pending = new LinkedHashMap<>();
+                    long delay = Math.max(0L, subscription.lastPushAt + subscription.minIntervalNanos - now);
+                    subscription.flushTimer = context.getSystem().scheduler().scheduleOnce(
+                            new FiniteDuration(delay, TimeUnit.NANOSECONDS),
+                            context.self(),
+                            new Flush(subscription.subscriber),
+                            context.dispatcher(),
+                            context.self());
+                }
+                subscription.pending.put(deviceId, value);
+            }
+        }
+    }
+
+    void flush(Flush f, AbstractActor.ActorContext context) {
+        Subscription subscription = subscriptions.get(f.subscriber);
+        if (subscription == null || subscription.pending == null) {
+            return;
+        }
+        Map<String, Double> pending = subscription.pending;
+        subscription.pending = null;
+        subscription.flushTimer = null;
+        subscription.lastPushAt = System.nanoTime();
+        pending.forEach((deviceId, value) -> push(subscription, deviceId, value, context));
+    }
+
+    void stop() {
+        subscriptions.values().forEach(this::cancel);
+        subscriptions.clear();
+    }
+
+    private void push(Subscription subscription, String deviceId, double value, AbstractActor.ActorContext context) {
+        subscription.lastPushed.put(deviceId, value);
+        subscription.subscriber.tell(new Device.TemperatureChanged(groupId, deviceId, value), context.self());
+    }
+
+    private void cancel(Subscription subscription) {
+        if (subscription != null && subscription.flushTimer != null) {
+            subscription.flushTimer.cancel();
+        }
+    }
+}
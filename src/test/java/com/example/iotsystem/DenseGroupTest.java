@@ -0,0 +1,166 @@
+package com.example.iotsystem;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import org.junit.*;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DenseGroupTest {
+
+    static ActorSystem system;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create("system");
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Test
+    public void registerDevicesWithoutActors() {
+        TestKit probe = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DenseDeviceGroup.props("group"));
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        assertEquals(groupActor, probe.getLastSender());
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("wrongGroup", "device3"), probe.getRef());
+        probe.expectNoMessage();
+
+        groupActor.tell(new DeviceGroup.RequestDeviceList(0L), probe.getRef());
+        DeviceGroup.ReplyDeviceList reply = probe.expectMsgClass(DeviceGroup.ReplyDeviceList.class);
+        assertEquals(0L, reply.requestId);
+        assertEquals(Stream.of("device1", "device2").collect(Collectors.toSet()), reply.ids);
+    }
+
+    @Test
+    public void recordAndReadThroughEnvelopes() {
+        TestKit probe = new TestKit(system);
+        ActorRef manager = system.actorOf(DeviceManager.props(IotSettings.defaults().withDenseGroups(true)));
+
+        manager.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        manager.tell(new DeviceManager.DeviceEnvelope("group", "device1", new Device.ReadTemperature(1L)), probe.getRef());
+        assertFalse(probe.expectMsgClass(Device.RespondTemperature.class).hasValue());
+
+        manager.tell(new DeviceManager.DeviceEnvelope(
+                "group", "device1", new Device.RecordTemperature(2L, 24.0)), probe.getRef());
+        assertEquals(2L, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
+
+        manager.tell(new DeviceManager.DeviceEnvelope("group", "device1", new Device.ReadTemperature(3L)), probe.getRef());
+        Device.RespondTemperature response = probe.expectMsgClass(Device.RespondTemperature.class);
+        assertEquals(3L, response.requestId);
+        assertEquals(24.0, response.value, 0.0);
+
+        // untracked devices are not created by their readings
+        manager.tell(new DeviceManager.DeviceEnvelope(
+                "group", "unknown", new Device.RecordTemperature(4L, 25.0)), probe.getRef());
+        probe.expectNoMessage();
+    }
+
+    @Test
+    public void collectTemperaturesAndStatisticsFromTheTable() {
+        TestKit probe = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DenseDeviceGroup.props("group"));
+
+        for (String deviceId : new String[] {"device1", "device2", "device3"}) {
+            groupActor.tell(new DeviceManager.RequestTrackDevice("group", deviceId), probe.getRef());
+            probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        }
+
+        groupActor.tell(new DeviceManager.RecordTemperatureBatch(1L, Arrays.asList(
+                new DeviceManager.Reading("group", "device1", 1L, 1.0),
+                new DeviceManager.Reading("group", "device2", 2L, 2.0),
+                new DeviceManager.Reading("group", "unknown", 3L, 3.0))), probe.getRef());
+        assertArrayEquals(new long[] {1L, 2L}, probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class).requestIds);
+
+        groupActor.tell(new DeviceGroup.RequestAllTemperatures(2L), probe.getRef());
+        DeviceGroup.ReplyAllTemperatures reply = probe.expectMsgClass(DeviceGroup.ReplyAllTemperatures.class);
+        assertEquals(2L, reply.requestId);
+
+        HashMap<String, DeviceGroup.TemperatureReading> expectedTemperatures = new HashMap<>();
+        expectedTemperatures.put("device1", new DeviceGroup.Temperature(1d));
+        expectedTemperatures.put("device2", new DeviceGroup.Temperature(2d));
+        expectedTemperatures.put("device3", DeviceGroup.TemperatureNotAvailable.INSTANCE);
+        assertEquals(expectedTemperatures, reply.temperatures);
+
+        groupActor.tell(new DeviceGroup.RequestGroupTemperatureStats(3L), probe.getRef());
+        DeviceGroup.RespondGroupTemperatureStats stats = probe.expectMsgClass(DeviceGroup.RespondGroupTemperatureStats.class);
+        assertEquals(2, stats.count);
+        assertEquals(1.0, stats.min, 0.0);
+        assertEquals(2.0, stats.max, 0.0);
+        assertEquals(1.5, stats.mean, 0.0);
+    }
+
+    @Test
+    public void answerBareDeviceMessagesOfTheRegisteredDeviceWithTheAckPolicy() {
+        TestKit probe = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DenseDeviceGroup.props(
+                "group", IotSettings.defaults().withAckPolicy(Device.AckPolicy.everyN(2))));
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef deviceActor = probe.getLastSender();
+
+        // the ref of DeviceRegistered takes the device messages
+        deviceActor.tell(new Device.RecordTemperature(1L, 21.0), probe.getRef());
+        probe.expectNoMessage();
+        deviceActor.tell(new Device.RecordTemperature(2L, 22.0), probe.getRef());
+        assertEquals(2L, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
+
+        deviceActor.tell(new Device.ReadTemperature(3L), probe.getRef());
+        Device.RespondTemperature response = probe.expectMsgClass(Device.RespondTemperature.class);
+        assertEquals(3L, response.requestId);
+        assertEquals(22.0, response.value, 0.0);
+
+        // a sender of several devices has to say which one
+        TestKit other = new TestKit(system);
+        for (String deviceId : new String[] {"device2", "device3"}) {
+            groupActor.tell(new DeviceManager.RequestTrackDevice("group", deviceId), other.getRef());
+            other.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        }
+        groupActor.tell(new Device.ReadTemperature(4L), other.getRef());
+        other.expectNoMessage();
+    }
+
+    @Test
+    public void answerRequestsWithOptionsCompletely() {
+        TestKit probe = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DenseDeviceGroup.props("group"));
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        groupActor.tell(new Device.RecordTemperature(1L, 1.0), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+
+        groupActor.tell(new DeviceGroup.RequestAllTemperatures(
+                2L, new FiniteDuration(1, TimeUnit.SECONDS), 0.5, null, true), probe.getRef());
+        DeviceGroup.ReplyAllTemperatures reply = probe.expectMsgClass(DeviceGroup.ReplyAllTemperatures.class);
+        assertEquals(2L, reply.requestId);
+        assertTrue(reply.complete);
+        assertEquals(new DeviceGroup.Temperature(1.0), reply.temperatures.get("device1"));
+        probe.expectNoMessage();
+    }
+
+}
@@ -2,12 +2,24 @@ package com.example.iotsystem;
 
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
+import akka.actor.PoisonPill;
+import akka.dispatch.Envelope;
+import akka.dispatch.MessageQueue;
 import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.ConfigFactory;
 import org.junit.*;
+import scala.Option;
+import scala.concurrent.duration.FiniteDuration;
 
-import java.util.Optional;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class DeviceTest  {
 
@@ -31,7 +43,7 @@ public class DeviceTest  {
         deviceActor.tell(new Device.ReadTemperature(42L), probe.getRef());
         Device.RespondTemperature response = probe.expectMsgClass(Device.RespondTemperature.class);
         assertEquals(42L, response.requestId);
-        assertEquals(Optional.empty(), response.value);
+        assertFalse(response.hasValue());
     }
 
     @Test
@@ -45,7 +57,7 @@ public class DeviceTest  {
         deviceActor.tell(new Device.ReadTemperature(2L), probe.getRef());
         Device.RespondTemperature response = probe.expectMsgClass(Device.RespondTemperature.class);
         assertEquals(2L, response.requestId);
-        assertEquals(Optional.of(24.0), response.value);
+        assertEquals(24.0, response.value, 0.0);
 
         deviceActor.tell(new Device.RecordTemperature(3L, 55), probe.getRef());
         assertEquals(3L, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
@@ -53,7 +65,273 @@ public class DeviceTest  {
         deviceActor.tell(new Device.ReadTemperature(4L), probe.getRef());
         Device.RespondTemperature response2 = probe.expectMsgClass(Device.RespondTemperature.class);
         assertEquals(4L, response2.requestId);
-        assertEquals(Optional.of(55.0), response2.value);
+        assertEquals(55.0, response2.value, 0.0);
+    }
+
+    @Test
+    public void keepLastReadingOfABatch() {
+        final TestKit probe = new TestKit(system);
+        ActorRef deviceActor = system.actorOf(Device.props("group", "device"));
+
+        deviceActor.tell(
+                new Device.RecordTemperatures(new long[] {1L, 2L, 3L}, new double[] {21.0, 22.0, 23.0}),
+                probe.getRef());
+        probe.expectNoMessage();
+
+        deviceActor.tell(new Device.ReadTemperature(4L), probe.getRef());
+        Device.RespondTemperature response = probe.expectMsgClass(Device.RespondTemperature.class);
+        assertEquals(4L, response.requestId);
+        assertEquals(23.0, response.value, 0.0);
+    }
+
+    @Test
+    public void neverAcknowledgeNoAckReadings() {
+        final TestKit probe = new TestKit(system);
+        ActorRef deviceActor = system.actorOf(Device.props("group", "device"));
+
+        deviceActor.tell(new Device.RecordTemperatureNoAck(1L, 24), probe.getRef());
+        deviceActor.tell(new Device.RecordTemperature(2L, 25), probe.getRef());
+        assertEquals(2L, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
+
+        deviceActor.tell(new Device.RecordTemperatureNoAck(3L, 26), probe.getRef());
+        deviceActor.tell(new Device.ReadTemperature(4L), probe.getRef());
+        assertEquals(26.0, probe.expectMsgClass(Device.RespondTemperature.class).value, 0.0);
+    }
+
+    @Test
+    public void acknowledgeEveryNthReading() {
+        final TestKit probe = new TestKit(system);
+        ActorRef deviceActor = system.actorOf(Device.props(
+                "group", "device", IotSettings.defaults().withAckPolicy(Device.AckPolicy.everyN(3))));
+
+        for (long requestId = 1L; requestId <= 7L; requestId++) {
+            deviceActor.tell(new Device.RecordTemperature(requestId, requestId), probe.getRef());
+        }
+
+        assertEquals(3L, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
+        assertEquals(6L, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
+        probe.expectNoMessage();
+    }
+
+    @Test
+    public void acknowledgeLatestReadingOnTimer() {
+        final TestKit probe = new TestKit(system);
+        ActorRef deviceActor = system.actorOf(Device.props(
+                "group", "device",
+                IotSettings.defaults().withAckPolicy(
+                        Device.AckPolicy.every(new FiniteDuration(200, TimeUnit.MILLISECONDS)))));
+
+        deviceActor.tell(new Device.RecordTemperature(1L, 1), probe.getRef());
+        deviceActor.tell(new Device.RecordTemperature(2L, 2), probe.getRef());
+        deviceActor.tell(new Device.RecordTemperature(3L, 3), probe.getRef());
+
+        assertEquals(3L, probe.expectMsgClass(Duration.ofSeconds(3), Device.TemperatureRecorded.class).requestId);
+        probe.expectNoMessage();
+    }
+
+    @Test
+    public void acknowledgeThePendingReadingWhenStopped() {
+        final TestKit probe = new TestKit(system);
+        ActorRef deviceActor = system.actorOf(Device.props(
+                "group", "device",
+                IotSettings.defaults().withAckPolicy(
+                        Device.AckPolicy.every(new FiniteDuration(1, TimeUnit.MINUTES)))));
+
+        deviceActor.tell(new Device.RecordTemperature(1L, 1), probe.getRef());
+        deviceActor.tell(PoisonPill.getInstance(), ActorRef.noSender());
+        assertEquals(1L, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
+    }
+
+    @Test
+    public void keepTheLastReadingsInHistory() {
+        final TestKit probe = new TestKit(system);
+        ActorRef deviceActor = system.actorOf(Device.props(
+                "group", "device", IotSettings.defaults().withHistoryCapacity(3)));
+
+        long before = System.currentTimeMillis();
+        for (long requestId = 1L; requestId <= 5L; requestId++) {
+            deviceActor.tell(new Device.RecordTemperatureNoAck(requestId, requestId), probe.getRef());
+        }
+
+        deviceActor.tell(new Device.ReadTemperatureHistory(6L, before, Long.MAX_VALUE), probe.getRef());
+        Device.RespondTemperatureHistory response = probe.expectMsgClass(Device.RespondTemperatureHistory.class);
+        assertEquals(6L, response.requestId);
+        assertArrayEquals(new double[] {3.0, 4.0, 5.0}, response.values, 0.0);
+        assertEquals(3, response.timestamps.length);
+
+        deviceActor.tell(new Device.ReadTemperatureHistory(7L, 0L, before), probe.getRef());
+        assertEquals(0, probe.expectMsgClass(Device.RespondTemperatureHistory.class).values.length);
+    }
+
+    @Test
+    public void replyWithEmptyHistoryIfNoneIsKept() {
+        final TestKit probe = new TestKit(system);
+        ActorRef deviceActor = system.actorOf(Device.props("group", "device"));
+
+        deviceActor.tell(new Device.RecordTemperatureNoAck(1L, 24), probe.getRef());
+        deviceActor.tell(new Device.ReadTemperatureHistory(2L, 0L, Long.MAX_VALUE), probe.getRef());
+        Device.RespondTemperatureHistory response = probe.expectMsgClass(Device.RespondTemperatureHistory.class);
+        assertEquals(2L, response.requestId);
+        assertEquals(0, response.values.length);
+    }
+
+    @Test
+    public void publishLatestTemperatureWhileRunning() {
+        final TestKit probe = new TestKit(system);
+        LatestTemperatures latest = LatestTemperatures.get(system);
+        ActorRef deviceActor = system.actorOf(
+                Device.props("publishing", "device", IotSettings.defaults().withPublishLatest(true)));
+
+        deviceActor.tell(new Device.RecordTemperature(1L, 24.0), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+        assertEquals(24.0, latest.latest("publishing", "device"), 0.0);
+
+        deviceActor.tell(new Device.RecordTemperatures(new long[] {2L, 3L}, new double[] {25.0, 26.0}), probe.getRef());
+        deviceActor.tell(new Device.ReadTemperature(4L), probe.getRef());
+        probe.expectMsgClass(Device.RespondTemperature.class);
+        assertEquals(26.0, latest.latest("publishing", "device"), 0.0);
+
+        probe.watch(deviceActor);
+        system.stop(deviceActor);
+        probe.expectTerminated(deviceActor);
+        assertTrue(Double.isNaN(latest.latest("publishing", "device")));
+    }
+
+    private static BoundedDeviceMailbox.DeviceMessageQueue boundedQueue(String overflowStrategy) {
+        BoundedDeviceMailbox mailbox = new BoundedDeviceMailbox(system.settings(), ConfigFactory.parseString(
+                "capacity = 2\noverflow-strategy = " + overflowStrategy));
+        return (BoundedDeviceMailbox.DeviceMessageQueue) mailbox.create(Option.empty(), Option.apply(system));
+    }
+
+    private static long[] drainReadings(BoundedDeviceMailbox.DeviceMessageQueue queue) {
+        List<Long> requestIds = new ArrayList<>();
+        for (Envelope handle = queue.dequeue(); handle != null; handle = queue.dequeue()) {
+            if (handle.message() instanceof Device.RecordTemperatureNoAck) {
+                requestIds.add(((Device.RecordTemperatureNoAck) handle.message()).requestId);
+            }
+        }
+        return requestIds.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private static void enqueueReadings(BoundedDeviceMailbox.DeviceMessageQueue queue, long... requestIds) {
+        for (long requestId : requestIds) {
+            queue.enqueue(ActorRef.noSender(), Envelope.apply(
+                    new Device.RecordTemperatureNoAck(requestId, requestId), ActorRef.noSender(), system));
+        }
+    }
+
+    @Test
+    public void boundReadingsWithTheOverflowStrategyOfTheMailbox() {
+        long droppedBefore = IngestionMetrics.get(system).dropped();
+
+        BoundedDeviceMailbox.DeviceMessageQueue dropNewest = boundedQueue("drop-newest");
+        enqueueReadings(dropNewest, 1L, 2L, 3L, 4L);
+        assertArrayEquals(new long[] {1L, 2L}, drainReadings(dropNewest));
+
+        BoundedDeviceMailbox.DeviceMessageQueue dropOldest = boundedQueue("drop-oldest");
+        enqueueReadings(dropOldest, 1L, 2L);
+        dropOldest.enqueue(ActorRef.noSender(), Envelope.apply(new Device.ReadTemperature(0L), ActorRef.noSender(), system));
+        enqueueReadings(dropOldest, 3L, 4L);
+        assertEquals(3, dropOldest.numberOfMessages());
+        assertArrayEquals(new long[] {3L, 4L}, drainReadings(dropOldest));
+
+        BoundedDeviceMailbox.DeviceMessageQueue coalesce = boundedQueue("coalesce");
+        enqueueReadings(coalesce, 1L, 2L, 3L);
+        assertArrayEquals(new long[] {3L}, drainReadings(coalesce));
+
+        assertEquals(2 + 2 + 2, IngestionMetrics.get(system).dropped() - droppedBefore);
+    }
+
+    @Test
+    public void queueControlMessagesAheadOfReadingsInTheBoundedMailbox() {
+        BoundedDeviceMailbox.DeviceMessageQueue queue = boundedQueue("drop-newest");
+        enqueueReadings(queue, 1L, 2L, 3L);
+        queue.enqueue(ActorRef.noSender(), Envelope.apply(
+                new DeviceManager.RequestTrackDevice("group", "device"), ActorRef.noSender(), system));
+
+        assertTrue(queue.dequeue().message() instanceof DeviceManager.RequestTrackDevice);
+        assertArrayEquals(new long[] {1L, 2L}, drainReadings(queue));
+    }
+
+    @Test
+    public void processOnlyTheLatestQueuedReadingWithACoalescingMailbox() {
+        final TestKit producer = new TestKit(system);
+        MessageQueue queue = new CoalescingDeviceMailbox(system.settings(), ConfigFactory.empty())
+                .create(Option.empty(), Option.apply(system));
+
+        queue.enqueue(ActorRef.noSender(), Envelope.apply(new Device.RecordTemperature(1L, 20.0), producer.getRef(), system));
+        queue.enqueue(ActorRef.noSender(), Envelope.apply(new Device.ReadTemperature(2L), producer.getRef(), system));
+        queue.enqueue(ActorRef.noSender(), Envelope.apply(new Device.RecordTemperature(3L, 21.0), producer.getRef(), system));
+        queue.enqueue(ActorRef.noSender(), Envelope.apply(new Device.RecordTemperatureNoAck(4L, 22.0), producer.getRef(), system));
+
+        Device.TemperatureSuperseded superseded = producer.expectMsgClass(Device.TemperatureSuperseded.class);
+        assertEquals(1L, superseded.requestId);
+        assertEquals(3L, superseded.supersededBy);
+        assertEquals(3L, producer.expectMsgClass(Device.TemperatureSuperseded.class).requestId);
+
+        assertTrue(queue.dequeue().message() instanceof Device.ReadTemperature);
+        assertEquals(4L, ((Device.RecordTemperatureNoAck) queue.dequeue().message()).requestId);
+        assertFalse(queue.hasMessages());
+        assertEquals(null, queue.dequeue());
+
+        queue.enqueue(ActorRef.noSender(), Envelope.apply(new Device.RecordTemperature(5L, 23.0), producer.getRef(), system));
+        assertEquals(5L, ((Device.RecordTemperature) queue.dequeue().message()).requestId);
+        producer.expectNoMessage(Duration.ofMillis(100));
+    }
+
+    @Test
+    public void recordAndReadThroughABoundedMailbox() {
+        final TestKit probe = new TestKit(system);
+        ActorRef deviceActor = system.actorOf(Device.props(
+                "group", "device", IotSettings.defaults().withDeviceMailbox("iot-system.mailboxes.device-bounded")));
+
+        deviceActor.tell(new Device.RecordTemperature(1L, 24.0), probe.getRef());
+        assertEquals(1L, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
+
+        deviceActor.tell(new Device.ReadTemperature(2L), probe.getRef());
+        assertEquals(24.0, probe.expectMsgClass(Device.RespondTemperature.class).value, 0.0);
+    }
+
+    @Test
+    public void pushChangesBeyondTheDeadbandToSubscribers() {
+        final TestKit subscriber = new TestKit(system);
+        ActorRef deviceActor = system.actorOf(Device.props("group", "device"));
+
+        deviceActor.tell(new Device.SubscribeTemperature(1L, 0.5, FiniteDuration.Zero()), subscriber.getRef());
+        assertEquals(1L, subscriber.expectMsgClass(Device.TemperatureSubscribed.class).requestId);
+
+        deviceActor.tell(new Device.RecordTemperatureNoAck(2L, 20.0), ActorRef.noSender());
+        Device.TemperatureChanged changed = subscriber.expectMsgClass(Device.TemperatureChanged.class);
+        assertEquals("device", changed.deviceId);
+        assertEquals(20.0, changed.value, 0.0);
+
+        deviceActor.tell(new Device.RecordTemperatureNoAck(3L, 20.3), ActorRef.noSender());
+        deviceActor.tell(new Device.RecordTemperatureNoAck(4L, 21.0), ActorRef.noSender());
+        assertEquals(21.0, subscriber.expectMsgClass(Device.TemperatureChanged.class).value, 0.0);
+
+        deviceActor.tell(new Device.UnsubscribeTemperature(), subscriber.getRef());
+        deviceActor.tell(new Device.RecordTemperatureNoAck(5L, 30.0), ActorRef.noSender());
+        subscriber.expectNoMessage(Duration.ofMillis(100));
+    }
+
+    @Test
+    public void conflateChangesToOnePerIntervalForSubscribers() {
+        final TestKit subscriber = new TestKit(system);
+        ActorRef deviceActor = system.actorOf(Device.props("group", "device"));
+        deviceActor.tell(new Device.RecordTemperatureNoAck(1L, 20.0), ActorRef.noSender());
+
+        deviceActor.tell(
+                new Device.SubscribeTemperature(2L, 0.0, FiniteDuration.create(300, TimeUnit.MILLISECONDS)),
+                subscriber.getRef());
+        subscriber.expectMsgClass(Device.TemperatureSubscribed.class);
+        assertEquals(20.0, subscriber.expectMsgClass(Device.TemperatureChanged.class).value, 0.0);
+
+        for (int i = 1; i <= 5; i++) {
+            deviceActor.tell(new Device.RecordTemperatureNoAck(2L + i, 20.0 + i), ActorRef.noSender());
+        }
+        subscriber.expectNoMessage(Duration.ofMillis(150));
+        assertEquals(25.0, subscriber.expectMsgClass(Device.TemperatureChanged.class).value, 0.0);
+        subscriber.expectNoMessage(Duration.ofMillis(400));
     }
 
     @Test
@@ -5,13 +5,26 @@ import akka.actor.ActorSystem;
 import akka.actor.PoisonPill;
 import akka.testkit.javadsl.TestKit;
 import org.junit.*;
-
+import scala.concurrent.duration.FiniteDuration;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class GroupTest {
 
@@ -51,6 +64,359 @@ public class GroupTest {
         assertEquals(1L, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
     }
 
+    @Test
+    public void pushTheChangesOfEveryDeviceToGroupSubscribers() {
+        TestKit probe = new TestKit(system);
+        TestKit subscriber = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props("group"));
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef deviceActor1 = probe.getLastSender();
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef deviceActor2 = probe.getLastSender();
+
+        deviceActor1.tell(new Device.RecordTemperature(0L, 1.0), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+        assertStatistics(probe, groupActor, 1, 1.0, 1.0, 1.0);
+
+        groupActor.tell(new Device.SubscribeTemperature(1L, 0.0, FiniteDuration.Zero()), subscriber.getRef());
+        subscriber.expectMsgClass(Device.TemperatureSubscribed.class);
+        Device.TemperatureChanged current = subscriber.expectMsgClass(Device.TemperatureChanged.class);
+        assertEquals("device1", current.deviceId);
+        assertEquals(1.0, current.value, 0.0);
+
+        deviceActor2.tell(new Device.RecordTemperature(2L, 2.0), probe.getRef());
+        Device.TemperatureChanged changed = subscriber.expectMsgClass(Device.TemperatureChanged.class);
+        assertEquals("group", changed.groupId);
+        assertEquals("device2", changed.deviceId);
+        assertEquals(2.0, changed.value, 0.0);
+
+        subscriber.getRef().tell(PoisonPill.getInstance(), ActorRef.noSender());
+        deviceActor2.tell(new Device.RecordTemperature(3L, 3.0), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+        assertStatistics(probe, groupActor, 2, 1.0, 3.0, 2.0);
+    }
+
+    @Test
+    public void tellOnlyANewSubscriberTheCurrentValues() {
+        TestKit probe = new TestKit(system);
+        TestKit first = new TestKit(system);
+        TestKit second = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props("group"));
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef deviceActor = probe.getLastSender();
+        deviceActor.tell(new Device.RecordTemperature(0L, 1.0), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+        assertStatistics(probe, groupActor, 1, 1.0, 1.0, 1.0);
+
+        groupActor.tell(new Device.SubscribeTemperature(1L, 0.0, FiniteDuration.Zero()), first.getRef());
+        first.expectMsgClass(Device.TemperatureSubscribed.class);
+        assertEquals(1.0, first.expectMsgClass(Device.TemperatureChanged.class).value, 0.0);
+
+        groupActor.tell(new Device.SubscribeTemperature(2L, 0.0, FiniteDuration.Zero()), second.getRef());
+        second.expectMsgClass(Device.TemperatureSubscribed.class);
+        assertEquals(1.0, second.expectMsgClass(Device.TemperatureChanged.class).value, 0.0);
+        first.expectNoMessage();
+
+        // and both are told the next change once
+        deviceActor.tell(new Device.RecordTemperature(3L, 2.0), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+        assertEquals(2.0, first.expectMsgClass(Device.TemperatureChanged.class).value, 0.0);
+        assertEquals(2.0, second.expectMsgClass(Device.TemperatureChanged.class).value, 0.0);
+    }
+
+    @Test
+    public void mergeRollupWindowsIntoTheRequestedResolution() {
+        GroupRollups rollups = new GroupRollups(60_000L, 3);
+        rollups.record(0, 0L, 1.0);
+        rollups.record(0, 59_999L, 3.0);
+        rollups.merge(0, 60_000L, 2, 4.0, 6.0, 10.0);
+        rollups.record(1, 60_000L, 100.0);
+
+        DeviceGroup.RespondRollups minutes = rollups.series(1L, 0, 0L, Long.MAX_VALUE, 60_000L);
+        assertArrayEquals(new long[] {0L, 60_000L}, minutes.windowStarts);
+        assertArrayEquals(new int[] {2, 2}, minutes.counts);
+        assertArrayEquals(new double[] {1.0, 4.0}, minutes.mins, 0.0);
+        assertArrayEquals(new double[] {3.0, 6.0}, minutes.maxs, 0.0);
+        assertArrayEquals(new double[] {2.0, 5.0}, minutes.means, 0.0);
+
+        DeviceGroup.RespondRollups merged = rollups.series(2L, 0, 0L, Long.MAX_VALUE, 120_000L);
+        assertArrayEquals(new long[] {0L}, merged.windowStarts);
+        assertArrayEquals(new int[] {4}, merged.counts);
+        assertArrayEquals(new double[] {3.5}, merged.means, 0.0);
+
+        // a window beyond the retention replaces the oldest one
+        rollups.record(0, 180_000L, 7.0);
+        assertArrayEquals(new long[] {60_000L, 180_000L}, rollups.series(3L, 0, 0L, Long.MAX_VALUE, 60_000L).windowStarts);
+
+        rollups.clear(0);
+        assertEquals(0, rollups.series(4L, 0, 0L, Long.MAX_VALUE, 60_000L).windowStarts.length);
+        assertEquals(1, rollups.series(5L, 1, 0L, Long.MAX_VALUE, 60_000L).windowStarts.length);
+    }
+
+    @Test
+    public void keepTheExtremesWithoutRecomputingWhenTheyMoveOutwards() {
+        DeviceTable table = new DeviceTable();
+        int hot = table.add("hot");
+        int cold = table.add("cold");
+        table.update(cold, 1.0);
+        table.update(hot, 10.0);
+
+        // the device at the max keeps pushing it up, and the one at the min down
+        for (int i = 1; i <= 100; i++) {
+            table.update(hot, 10.0 + i);
+            table.update(cold, 1.0 - i);
+            assertFalse(table.minStale || table.maxStale);
+        }
+        DeviceGroup.RespondGroupTemperatureStats stats = table.statistics(1L);
+        assertEquals(-99.0, stats.min, 0.0);
+        assertEquals(110.0, stats.max, 0.0);
+
+        // moving inwards leaves the max to the next statistics
+        table.update(hot, 0.0);
+        assertTrue(table.maxStale);
+        assertFalse(table.minStale);
+        stats = table.statistics(2L);
+        assertEquals(0.0, stats.max, 0.0);
+        assertEquals(-49.5, stats.mean, 0.0);
+        assertFalse(table.maxStale);
+    }
+
+    @Test
+    public void collectTheRollupWindowsReportedByDevices() {
+        TestKit probe = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props(
+                "group", IotSettings.defaults().withRollups(FiniteDuration.create(200, TimeUnit.MILLISECONDS), 10)));
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef deviceActor = probe.getLastSender();
+
+        // a single message, so a single window, reported when it is over without another reading
+        deviceActor.tell(new Device.RecordTemperatures(new long[] {1L, 2L, 3L}, new double[] {1.0, 2.0, 6.0}), probe.getRef());
+
+        probe.awaitAssert(() -> {
+            groupActor.tell(new DeviceGroup.RequestRollups(
+                    6L, "device1", 0L, Long.MAX_VALUE, FiniteDuration.Zero()), probe.getRef());
+            DeviceGroup.RespondRollups response = probe.expectMsgClass(DeviceGroup.RespondRollups.class);
+            assertEquals(6L, response.requestId);
+            assertArrayEquals(new int[] {3}, response.counts);
+            assertArrayEquals(new double[] {1.0}, response.mins, 0.0);
+            assertArrayEquals(new double[] {6.0}, response.maxs, 0.0);
+            assertArrayEquals(new double[] {3.0}, response.means, 0.0);
+            return null;
+        });
+    }
+
+    @Test
+    public void scanHistorySegmentsAcrossRollsAndRestarts() throws Exception {
+        Path directory = Files.createTempDirectory("iot-history");
+        HistorySegments segments = new HistorySegments(directory, 3, TimeUnit.DAYS.toMillis(30));
+        segments.open();
+        long now = System.currentTimeMillis();
+        int device1 = segments.slotOf("device1");
+        int device2 = segments.slotOf("device2");
+        for (int i = 0; i < 4; i++) {
+            segments.append(device1, now + i, i);
+            segments.append(device2, now + i, 10.0 + i);
+        }
+        segments.close();
+        assertEquals(3, segments.segments.size());
+
+        // an id torn by a crash is cut off, the ones before it keep their slots
+        long whole = Files.size(directory.resolve(HistorySegments.DEVICES));
+        Files.write(directory.resolve(HistorySegments.DEVICES), new byte[] {0, 7, 'd'}, StandardOpenOption.APPEND);
+
+        HistorySegments reopened = new HistorySegments(directory, 3, TimeUnit.DAYS.toMillis(30));
+        reopened.open();
+        assertEquals(whole, Files.size(directory.resolve(HistorySegments.DEVICES)));
+        assertEquals(device2, reopened.slotOf("device2"));
+        assertEquals(2, reopened.slotOf("device3"));
+        reopened.append(device2, now + 4, 14.0);
+
+        Device.RespondTemperatureHistory all = reopened.range(1L, device2, now, Long.MAX_VALUE);
+        assertArrayEquals(new double[] {10.0, 11.0, 12.0, 13.0, 14.0}, all.values, 0.0);
+        Device.RespondTemperatureHistory some = reopened.range(2L, device1, now + 1, now + 3);
+        assertArrayEquals(new long[] {now + 1, now + 2}, some.timestamps);
+        assertArrayEquals(new double[] {1.0, 2.0}, some.values, 0.0);
+        reopened.close();
+
+        // with a retention of a millisecond only the segment written to survives a restart
+        Thread.sleep(5);
+        HistorySegments expired = new HistorySegments(directory, 3, 1L);
+        expired.open();
+        assertEquals(1, expired.segments.size());
+        assertEquals(2, expired.slotOf("device3"));
+        expired.close();
+
+        try {
+            IotSettings.defaults().withHistorySegments(
+                    directory.toString(), HistorySegments.MAX_SEGMENT_ROWS + 1, FiniteDuration.create(1, TimeUnit.DAYS));
+            fail("a segment over 2 GB cannot be mapped");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void growSegmentsAndIndexTheRowsAppendedSinceTheLastQuery() throws Exception {
+        Path directory = Files.createTempDirectory("iot-history");
+        HistorySegments segments = new HistorySegments(directory, 10_000, TimeUnit.DAYS.toMillis(30));
+        segments.open();
+        long now = System.currentTimeMillis();
+        int device1 = segments.slotOf("device1");
+        int device2 = segments.slotOf("device2");
+        for (int i = 0; i < HistorySegments.FIRST_SEGMENT_ROWS; i++) {
+            segments.append(i % 2 == 0 ? device1 : device2, now + i, i);
+        }
+        segments.append(device1, now + HistorySegments.FIRST_SEGMENT_ROWS, -1.0);
+        assertEquals(HistorySegments.FIRST_SEGMENT_ROWS, segments.segments.get(0).capacity);
+        assertEquals(2 * HistorySegments.FIRST_SEGMENT_ROWS, segments.segments.get(1).capacity);
+
+        Device.RespondTemperatureHistory some = segments.range(1L, device2, now, now + 4);
+        assertArrayEquals(new double[] {1.0, 3.0}, some.values, 0.0);
+        Device.RespondTemperatureHistory spanning = segments.range(2L, device1, now + HistorySegments.FIRST_SEGMENT_ROWS - 2, Long.MAX_VALUE);
+        assertArrayEquals(new double[] {HistorySegments.FIRST_SEGMENT_ROWS - 2, -1.0}, spanning.values, 0.0);
+
+        segments.append(device2, now + HistorySegments.FIRST_SEGMENT_ROWS + 1, -2.0);
+        Device.RespondTemperatureHistory appended = segments.range(3L, device2, now + HistorySegments.FIRST_SEGMENT_ROWS, Long.MAX_VALUE);
+        assertArrayEquals(new double[] {-2.0}, appended.values, 0.0);
+        segments.close();
+    }
+
+    @Test
+    public void readDeviceHistoryFromTheSegmentsOfTheGroup() throws Exception {
+        TestKit probe = new TestKit(system);
+        Path directory = Files.createTempDirectory("iot-history");
+        ActorRef groupActor = system.actorOf(DeviceGroup.props("group", IotSettings.defaults()
+                .withHistoryCapacity(2)
+                .withHistorySegments(directory.toString(), 4, FiniteDuration.create(1, TimeUnit.DAYS))));
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef deviceActor = probe.getLastSender();
+
+        // two flushes when the buffer is full, the last reading is flushed by the read
+        for (int i = 1; i <= 5; i++) {
+            deviceActor.tell(new Device.RecordTemperature(i, i), probe.getRef());
+            probe.expectMsgClass(Device.TemperatureRecorded.class);
+        }
+        deviceActor.tell(new Device.ReadTemperatureHistory(6L, 0L, Long.MAX_VALUE), probe.getRef());
+        Device.RespondTemperatureHistory response = probe.expectMsgClass(Device.RespondTemperatureHistory.class);
+        assertEquals(6L, response.requestId);
+        assertArrayEquals(new double[] {1.0, 2.0, 3.0, 4.0, 5.0}, response.values, 0.0);
+        assertEquals(2, Files.list(directory.resolve("group")).filter(f -> f.toString().endsWith(".col")).count());
+    }
+
+    @Test
+    public void trackDevicesInBulkAndCreateTheirActorsOnDemand() {
+        TestKit probe = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props("group"));
+
+        groupActor.tell(new DeviceManager.BulkTrackDevices(1L, "group", new String[] {"device1", "device2", "device3"}), probe.getRef());
+        assertEquals(3, probe.expectMsgClass(DeviceManager.DevicesTracked.class).added);
+        groupActor.tell(new DeviceManager.BulkTrackDevices(2L, "group", new String[] {"device3", "device4"}), probe.getRef());
+        assertEquals(1, probe.expectMsgClass(DeviceManager.DevicesTracked.class).added);
+
+        groupActor.tell(new DeviceGroup.RequestDeviceList(3L), probe.getRef());
+        assertEquals(Stream.of("device1", "device2", "device3", "device4").collect(Collectors.toSet()),
+                probe.expectMsgClass(DeviceGroup.ReplyDeviceList.class).ids);
+
+        // the first message of a device creates its actor
+        groupActor.tell(new DeviceManager.DeviceEnvelope("group", "device2", new Device.RecordTemperature(4L, 2.0)), probe.getRef());
+        assertEquals(4L, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
+        ActorRef device2 = probe.getLastSender();
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        assertEquals(device2, probe.getLastSender());
+
+        // devices without an actor are answered from the table
+        probe.awaitAssert(() -> {
+            groupActor.tell(new DeviceGroup.RequestAllTemperatures(5L), probe.getRef());
+            DeviceGroup.ReplyAllTemperatures response = probe.expectMsgClass(DeviceGroup.ReplyAllTemperatures.class);
+            assertEquals(4, response.temperatures.size());
+            assertEquals(new DeviceGroup.Temperature(2.0), response.temperatures.get("device2"));
+            assertEquals(DeviceGroup.TemperatureNotAvailable.INSTANCE, response.temperatures.get("device4"));
+            return null;
+        });
+    }
+
+    @Test
+    public void passivateIdleDevicesAndAnswerForThemFromTheTable() {
+        TestKit probe = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props("group", IotSettings.defaults()
+                .withAckPolicy(Device.AckPolicy.everyN(3))
+                .withPublishLatest(true)
+                .withPassivateAfter(FiniteDuration.create(200, TimeUnit.MILLISECONDS))));
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef registered = probe.getLastSender();
+        groupActor.tell(new DeviceManager.BulkTrackDevices(1L, "group", new String[] {"device2"}), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DevicesTracked.class);
+
+        // two readings of three, acknowledged when the device is passivated
+        groupActor.tell(new DeviceManager.DeviceEnvelope("group", "device2", new Device.RecordTemperature(2L, 5.0)), probe.getRef());
+        groupActor.tell(new DeviceManager.DeviceEnvelope("group", "device2", new Device.RecordTemperature(3L, 6.0)), probe.getRef());
+        assertEquals(3L, probe.expectMsgClass(Duration.ofSeconds(3), Device.TemperatureRecorded.class).requestId);
+        ActorRef deviceActor = probe.getLastSender();
+        probe.watch(deviceActor);
+        probe.expectTerminated(Duration.ofSeconds(3), deviceActor);
+        assertEquals(6.0, LatestTemperatures.get(system).latest("group", "device2"), 0.0);
+
+        // the device whose ActorRef was handed out is still there
+        registered.tell(new Device.ReadTemperature(4L), probe.getRef());
+        assertEquals(4L, probe.expectMsgClass(Device.RespondTemperature.class).requestId);
+        assertEquals(registered, probe.getLastSender());
+
+        groupActor.tell(new DeviceGroup.RequestAllTemperatures(5L), probe.getRef());
+        assertEquals(new DeviceGroup.Temperature(6.0),
+                probe.expectMsgClass(DeviceGroup.ReplyAllTemperatures.class).temperatures.get("device2"));
+        groupActor.tell(new DeviceGroup.RequestDeviceList(6L), probe.getRef());
+        assertEquals(Stream.of("device1", "device2").collect(Collectors.toSet()),
+                probe.expectMsgClass(DeviceGroup.ReplyDeviceList.class).ids);
+
+        // the next message starts the device again, with the reading it had
+        groupActor.tell(new DeviceManager.DeviceEnvelope("group", "device2", new Device.ReadTemperature(7L)), probe.getRef());
+        Device.RespondTemperature response = probe.expectMsgClass(Device.RespondTemperature.class);
+        assertEquals(7L, response.requestId);
+        assertEquals(Optional.of(6.0), response.optionalValue());
+        assertNotEquals(deviceActor, probe.getLastSender());
+
+        // a device that is stopped, and not passivated, is removed with its published reading
+        probe.getLastSender().tell(PoisonPill.getInstance(), ActorRef.noSender());
+        probe.awaitAssert(() -> {
+            groupActor.tell(new DeviceGroup.RequestDeviceList(8L), probe.getRef());
+            assertEquals(Collections.singleton("device1"), probe.expectMsgClass(DeviceGroup.ReplyDeviceList.class).ids);
+            return null;
+        });
+        assertTrue(Double.isNaN(LatestTemperatures.get(system).latest("group", "device2")));
+    }
+
+    @Test
+    public void answerRequestsWithTheirOwnTimeoutWithAQueryOfTheirOwn() {
+        TestKit probe = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props("group"));
+
+        groupActor.tell(new DeviceManager.BulkTrackDevices(1L, "group", new String[] {"device1"}), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DevicesTracked.class);
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        groupActor.tell(new DeviceGroup.RequestAllTemperatures(
+                7L, FiniteDuration.create(500, TimeUnit.MILLISECONDS), 1.0, null, true), probe.getRef());
+        DeviceGroup.ReplyAllTemperatures reply = probe.expectMsgClass(DeviceGroup.ReplyAllTemperatures.class);
+        assertEquals(7L, reply.requestId);
+        assertTrue(reply.complete);
+        assertEquals(2, reply.temperatures.size());
+        probe.expectNoMessage(Duration.ofMillis(600));
+    }
+
     @Test
     public void receiveSameActorForSameDeviceId() {
         TestKit probe = new TestKit(system);
@@ -154,4 +520,151 @@ public class GroupTest {
         assertEquals(expectedTemperatures, reply.temperatures);
     }
 
+    @Test
+    public void recordBatchOnTrackedDevicesOnly() {
+        TestKit probe = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props("group"));
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef device1 = probe.getLastSender();
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef device2 = probe.getLastSender();
+
+        groupActor.tell(new DeviceManager.RecordTemperatureBatch(7L, Arrays.asList(
+                new DeviceManager.Reading("group", "device1", 1L, 1.0),
+                new DeviceManager.Reading("group", "device2", 2L, 2.0),
+                new DeviceManager.Reading("group", "device1", 3L, 3.0),
+                new DeviceManager.Reading("group", "unknown", 4L, 4.0),
+                new DeviceManager.Reading("wrongGroup", "device1", 5L, 5.0))), probe.getRef());
+
+        DeviceManager.TemperatureBatchRecorded ack = probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class);
+        assertEquals(7L, ack.batchId);
+        assertArrayEquals(new long[] {1L, 2L, 3L}, ack.requestIds);
+
+        device1.tell(new Device.ReadTemperature(8L), probe.getRef());
+        assertEquals(3.0, probe.expectMsgClass(Device.RespondTemperature.class).value, 0.0);
+
+        device2.tell(new Device.ReadTemperature(9L), probe.getRef());
+        assertEquals(2.0, probe.expectMsgClass(Device.RespondTemperature.class).value, 0.0);
+    }
+
+    @Test
+    public void answerStatisticsFromReportedReadings() {
+        TestKit probe = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props("group"));
+
+        ActorRef[] devices = new ActorRef[4];
+        for (int i = 0; i < devices.length; i++) {
+            groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device" + i), probe.getRef());
+            probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+            devices[i] = probe.getLastSender();
+        }
+
+        devices[0].tell(new Device.RecordTemperatureNoAck(0L, 10.0), probe.getRef());
+        devices[1].tell(new Device.RecordTemperatureNoAck(1L, 20.0), probe.getRef());
+        devices[2].tell(new Device.RecordTemperatureNoAck(2L, 30.0), probe.getRef());
+        // no reading for device 3
+        assertStatistics(probe, groupActor, 3, 10.0, 30.0, 20.0);
+
+        // the device holding the maximum moves inwards
+        devices[2].tell(new Device.RecordTemperatureNoAck(3L, 15.0), probe.getRef());
+        assertStatistics(probe, groupActor, 3, 10.0, 20.0, 15.0);
+
+        probe.watch(devices[0]);
+        devices[0].tell(PoisonPill.getInstance(), ActorRef.noSender());
+        probe.expectTerminated(devices[0]);
+        assertStatistics(probe, groupActor, 2, 15.0, 20.0, 17.5);
+    }
+
+    @Test
+    public void answerConcurrentRequestsWithTheirOwnRequestIds() {
+        TestKit probe = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props("group"));
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef device1 = probe.getLastSender();
+
+        device1.tell(new Device.RecordTemperature(0L, 1d), probe.getRef());
+        assertEquals(0L, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
+
+        TestKit[] requesters = {new TestKit(system), new TestKit(system), new TestKit(system)};
+        for (int i = 0; i < requesters.length; i++) {
+            groupActor.tell(new DeviceGroup.RequestAllTemperatures(10L + i), requesters[i].getRef());
+        }
+
+        HashMap<String, DeviceGroup.TemperatureReading> expectedTemperatures = new HashMap<>();
+        expectedTemperatures.put("device1", new DeviceGroup.Temperature(1d));
+
+        for (int i = 0; i < requesters.length; i++) {
+            DeviceGroup.ReplyAllTemperatures reply =
+                    requesters[i].expectMsgClass(DeviceGroup.ReplyAllTemperatures.class);
+            assertEquals(10L + i, reply.requestId);
+            assertEquals(expectedTemperatures, reply.temperatures);
+            requesters[i].expectNoMessage(Duration.ofMillis(100));
+        }
+    }
+
+    @Test
+    public void answerFromSnapshotUpdatedByDevices() {
+        TestKit probe = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props(
+                "group", IotSettings.defaults().withSnapshotStaleness(new FiniteDuration(1, TimeUnit.MINUTES))));
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef device1 = probe.getLastSender();
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        device1.tell(new Device.RecordTemperature(0L, 1d), probe.getRef());
+        assertEquals(0L, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
+
+        // the first request collects from the devices
+        groupActor.tell(new DeviceGroup.RequestAllTemperatures(1L), probe.getRef());
+        DeviceGroup.ReplyAllTemperatures reply = probe.expectMsgClass(DeviceGroup.ReplyAllTemperatures.class);
+        assertEquals(1L, reply.requestId);
+
+        HashMap<String, DeviceGroup.TemperatureReading> expectedTemperatures = new HashMap<>();
+        expectedTemperatures.put("device1", new DeviceGroup.Temperature(1d));
+        expectedTemperatures.put("device2", DeviceGroup.TemperatureNotAvailable.INSTANCE);
+        assertEquals(expectedTemperatures, reply.temperatures);
+
+        // later readings reach the snapshot through the device updates
+        device1.tell(new Device.RecordTemperature(2L, 3d), probe.getRef());
+        assertEquals(2L, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
+        expectedTemperatures.put("device1", new DeviceGroup.Temperature(3d));
+
+        probe.awaitAssert(() -> {
+            groupActor.tell(new DeviceGroup.RequestAllTemperatures(3L), probe.getRef());
+            DeviceGroup.ReplyAllTemperatures cached = probe.expectMsgClass(DeviceGroup.ReplyAllTemperatures.class);
+            assertEquals(3L, cached.requestId);
+            assertEquals(expectedTemperatures, cached.temperatures);
+            return null;
+        });
+
+        // and the replies already handed out are left untouched
+        expectedTemperatures.put("device1", new DeviceGroup.Temperature(1d));
+        assertEquals(expectedTemperatures, reply.temperatures);
+    }
+
+    private void assertStatistics(TestKit probe, ActorRef groupActor, int count, double min, double max, double mean) {
+        // await to retry because the devices report their readings asynchronously
+        probe.awaitAssert(() -> {
+            groupActor.tell(new DeviceGroup.RequestGroupTemperatureStats(5L), probe.getRef());
+            DeviceGroup.RespondGroupTemperatureStats stats =
+                    probe.expectMsgClass(DeviceGroup.RespondGroupTemperatureStats.class);
+            assertEquals(5L, stats.requestId);
+            assertEquals(count, stats.count);
+            assertEquals(min, stats.min, 0.0);
+            assertEquals(max, stats.max, 0.0);
+            assertEquals(mean, stats.mean, 1e-9);
+            return null;
+        });
+    }
+
 }
@@ -0,0 +1,97 @@
+package com.example.iotsystem;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.stream.ActorMaterializer;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import akka.testkit.javadsl.TestKit;
+import org.junit.*;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class IotStreamsTest {
+
+    static ActorSystem system;
+    static Materializer materializer;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create("system");
+        materializer = ActorMaterializer.create(system);
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Test
+    public void splitBatchesByGroupInArrivalOrder() {
+        List<DeviceManager.RecordTemperatureBatch> batches = IotStreams.splitByGroup(Arrays.asList(
+                new DeviceManager.Reading("group1", "device1", 1L, 1.0),
+                new DeviceManager.Reading("group2", "device1", 2L, 2.0),
+                new DeviceManager.Reading("group1", "device2", 3L, 3.0)), new long[] {5L});
+
+        assertEquals(2, batches.size());
+        assertEquals(5L, batches.get(0).batchId);
+        assertEquals(Arrays.asList(1L, 3L),
+                batches.get(0).readings.stream().map(r -> r.requestId).collect(Collectors.toList()));
+        assertEquals(6L, batches.get(1).batchId);
+        assertEquals("group2", batches.get(1).readings.get(0).groupId);
+    }
+
+    @Test
+    public void streamReadingsIntoTheManager() {
+        TestKit probe = new TestKit(system);
+        ActorRef manager = system.actorOf(DeviceManager.props());
+
+        for (String groupId : new String[] {"group1", "group2"}) {
+            for (String deviceId : new String[] {"device1", "device2"}) {
+                manager.tell(new DeviceManager.RequestTrackDevice(groupId, deviceId), probe.getRef());
+                probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+            }
+        }
+
+        List<DeviceManager.TemperatureBatchRecorded> acks = Source.range(1, 1000)
+                .map(i -> new DeviceManager.Reading("group" + (i % 2 + 1), "device" + (i % 4 / 2 + 1), i, i))
+                .via(IotStreams.ingestionFlow(
+                        manager,
+                        100,
+                        FiniteDuration.create(50, TimeUnit.MILLISECONDS),
+                        4,
+                        FiniteDuration.create(3, TimeUnit.SECONDS)))
+                .runWith(Sink.seq(), materializer)
+                .toCompletableFuture().join();
+
+        long[] recorded = acks.stream().flatMapToLong(ack -> LongStream.of(ack.requestIds)).sorted().toArray();
+        assertArrayEquals(IntStream.rangeClosed(1, 1000).asLongStream().toArray(), recorded);
+
+        manager.tell(new DeviceManager.RequestGroupActorList(0L), probe.getRef());
+        Map<String, DeviceGroup.TemperatureReading> temperatures = new HashMap<>();
+        for (ActorRef group : probe.expectMsgClass(DeviceManager.ReplyGroupActorList.class).actors) {
+            group.tell(new DeviceGroup.RequestAllTemperatures(1L), probe.getRef());
+            DeviceGroup.ReplyAllTemperatures reply = probe.expectMsgClass(DeviceGroup.ReplyAllTemperatures.class);
+            reply.temperatures.forEach((deviceId, reading) -> temperatures.put(group.path().name() + "/" + deviceId, reading));
+        }
+
+        // the last reading of every device: i % 2 picks the group, i % 4 / 2 the device
+        assertEquals(new DeviceGroup.Temperature(997.0), temperatures.get("group-group2/device1"));
+        assertEquals(new DeviceGroup.Temperature(998.0), temperatures.get("group-group1/device2"));
+        assertEquals(new DeviceGroup.Temperature(999.0), temperatures.get("group-group2/device2"));
+        assertEquals(new DeviceGroup.Temperature(1000.0), temperatures.get("group-group1/device1"));
+    }
+}
@@ -4,13 +4,27 @@ import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
 import akka.actor.PoisonPill;
 import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.ConfigFactory;
 import org.junit.*;
+import scala.concurrent.duration.FiniteDuration;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 
 public class ManagerTest {
 
@@ -95,5 +109,342 @@ public class ManagerTest {
         });
     }
 
+    @Test
+    public void acknowledgeBatchAcrossGroupsOnce() {
+        TestKit probe = new TestKit(system);
+        ActorRef act = system.actorOf(DeviceManager.props());
+
+        act.tell(new DeviceManager.RequestTrackDevice("group1", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef device1 = probe.getLastSender();
+
+        act.tell(new DeviceManager.RequestTrackDevice("group2", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef device2 = probe.getLastSender();
+
+        act.tell(new DeviceManager.RecordTemperatureBatch(1L, Arrays.asList(
+                new DeviceManager.Reading("group1", "device1", 10L, 1.0),
+                new DeviceManager.Reading("group2", "device2", 11L, 2.0),
+                new DeviceManager.Reading("group1", "unknown", 12L, 3.0),
+                new DeviceManager.Reading("group3", "device3", 13L, 4.0))), probe.getRef());
+
+        DeviceManager.TemperatureBatchRecorded ack = probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class);
+        assertEquals(1L, ack.batchId);
+        long[] accepted = ack.requestIds.clone();
+        Arrays.sort(accepted);
+        assertArrayEquals(new long[] {10L, 11L}, accepted);
+        probe.expectNoMessage();
+
+        device1.tell(new Device.ReadTemperature(2L), probe.getRef());
+        assertEquals(1.0, probe.expectMsgClass(Device.RespondTemperature.class).value, 0.0);
+
+        device2.tell(new Device.ReadTemperature(3L), probe.getRef());
+        assertEquals(2.0, probe.expectMsgClass(Device.RespondTemperature.class).value, 0.0);
+    }
+
+    @Test
+    public void routeEnvelopesToDevices() {
+        TestKit probe = new TestKit(system);
+        ActorRef act = system.actorOf(DeviceManager.props());
+
+        act.tell(new DeviceManager.RequestTrackDevice("group1", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef device1 = probe.getLastSender();
+
+        act.tell(new DeviceManager.DeviceEnvelope(
+                "group1", "device1", new Device.RecordTemperature(1L, 24.0)), probe.getRef());
+        assertEquals(1L, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
+        assertEquals(device1, probe.getLastSender());
+
+        act.tell(new DeviceManager.DeviceEnvelope("group1", "device2", new Device.ReadTemperature(2L)), probe.getRef());
+        act.tell(new DeviceManager.DeviceEnvelope("group2", "device1", new Device.ReadTemperature(3L)), probe.getRef());
+        probe.expectNoMessage();
+    }
+
+    @Test
+    public void resolveDeviceRefsUntilTheDeviceStops() {
+        TestKit probe = new TestKit(system);
+        ActorRef act = system.actorOf(DeviceManager.props());
+
+        act.tell(new DeviceManager.RequestTrackDevice("group1", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef device1 = probe.getLastSender();
+
+        act.tell(new DeviceManager.RequestDeviceRef(1L, "group1", "device1"), probe.getRef());
+        DeviceManager.DeviceRefResolved resolved = probe.expectMsgClass(DeviceManager.DeviceRefResolved.class);
+        assertEquals(1L, resolved.requestId);
+        assertEquals(Optional.of(device1), resolved.device);
+
+        act.tell(new DeviceManager.RequestDeviceRef(2L, "group1", "unknown"), probe.getRef());
+        assertEquals(Optional.empty(), probe.expectMsgClass(DeviceManager.DeviceRefResolved.class).device);
+        act.tell(new DeviceManager.RequestDeviceRef(3L, "unknown", "device1"), probe.getRef());
+        assertEquals(Optional.empty(), probe.expectMsgClass(DeviceManager.DeviceRefResolved.class).device);
+
+        device1.tell(PoisonPill.getInstance(), ActorRef.noSender());
+        DeviceManager.DeviceRefInvalidated invalidated = probe.expectMsgClass(DeviceManager.DeviceRefInvalidated.class);
+        assertEquals("group1", invalidated.groupId);
+        assertEquals("device1", invalidated.deviceId);
+    }
+
+    @Test
+    public void forgetResolversThatStopBeforeTheDevice() {
+        TestKit probe = new TestKit(system);
+        ActorRef act = system.actorOf(DeviceManager.props());
+
+        act.tell(new DeviceManager.RequestTrackDevice("group1", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef device1 = probe.getLastSender();
+
+        for (int i = 0; i < 10; i++) {
+            TestKit producer = new TestKit(system);
+            act.tell(new DeviceManager.RequestDeviceRef(i, "group1", "device1"), producer.getRef());
+            producer.expectMsgClass(DeviceManager.DeviceRefResolved.class);
+            probe.watch(producer.getRef());
+            system.stop(producer.getRef());
+            probe.expectTerminated(producer.getRef());
+        }
+        act.tell(new DeviceManager.RequestDeviceRef(10L, "group1", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRefResolved.class);
+
+        device1.tell(PoisonPill.getInstance(), ActorRef.noSender());
+        assertEquals("device1", probe.expectMsgClass(DeviceManager.DeviceRefInvalidated.class).deviceId);
+
+        act.tell(new DeviceManager.RequestTrackDevice("group1", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+    }
+
+    @Test
+    public void runOnTheDedicatedDispatchersOfTheProfile() {
+        TestKit probe = new TestKit(system);
+        IotSettings settings = IotSettings.create(ConfigFactory.parseResources("iot-dedicated-dispatchers.conf")
+                .withFallback(system.settings().config()));
+
+        assertEquals("iot-system.dispatchers.ingestion", Device.props("group", "device", settings).dispatcher());
+        assertEquals("iot-system.mailboxes.device-control-aware", Device.props("group", "device", settings).mailbox());
+        assertEquals("iot-system.dispatchers.lifecycle", DeviceGroup.props("group", settings).dispatcher());
+
+        ActorRef manager = system.actorOf(DeviceManager.props(settings));
+        manager.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef device1 = probe.getLastSender();
+
+        device1.tell(new Device.RecordTemperature(1L, 20.0), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+
+        manager.tell(new DeviceManager.RequestTrackDevice("group", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        manager.tell(new DeviceManager.RequestGroupActorList(2L), probe.getRef());
+        ActorRef group = probe.expectMsgClass(DeviceManager.ReplyGroupActorList.class).actors.iterator().next();
+        group.tell(new DeviceGroup.RequestAllTemperatures(2L), probe.getRef());
+        DeviceGroup.ReplyAllTemperatures reply = probe.expectMsgClass(DeviceGroup.ReplyAllTemperatures.class);
+        assertEquals(new DeviceGroup.Temperature(20.0), reply.temperatures.get("device1"));
+        assertEquals(DeviceGroup.TemperatureNotAvailable.INSTANCE, reply.temperatures.get("device2"));
+    }
+
+    @Test
+    public void tellRecentProducersToSlowDownWhenReadingsAreDropped() {
+        TestKit producer = new TestKit(system);
+        TestKit idle = new TestKit(system);
+        ActorRef manager = system.actorOf(DeviceManager.props(IotSettings.defaults()
+                .withBackpressureCheckInterval(FiniteDuration.create(100, TimeUnit.MILLISECONDS))));
+
+        manager.tell(new DeviceManager.RequestTrackDevice("group", "device"), idle.getRef());
+        idle.expectMsgClass(DeviceManager.DeviceRegistered.class);
 
+        manager.tell(new DeviceManager.DeviceEnvelope("group", "device", new Device.RecordTemperatureNoAck(1L, 20.0), true),
+                producer.getRef());
+        manager.tell(new DeviceManager.DeviceEnvelope("group", "device", new Device.RecordTemperatureNoAck(2L, 21.0)),
+                idle.getRef());
+        IngestionMetrics.get(system).register(null).add(3);
+
+        assertTrue(producer.expectMsgClass(DeviceManager.SlowDown.class).droppedReadings >= 3);
+        idle.expectNoMessage(Duration.ofMillis(300));
+        producer.expectNoMessage(Duration.ofMillis(300));
+    }
+
+    @Test
+    public void tellTheProducerOfABatchSpanningShardsToSlowDown() {
+        TestKit producer = new TestKit(system);
+        ActorRef manager = system.actorOf(DeviceManager.shardedProps(4, IotSettings.defaults()
+                .withBackpressureCheckInterval(FiniteDuration.create(100, TimeUnit.MILLISECONDS))));
+
+        List<DeviceManager.Reading> readings = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            manager.tell(new DeviceManager.RequestTrackDevice("group" + i, "device"), producer.getRef());
+            producer.expectMsgClass(DeviceManager.DeviceRegistered.class);
+            readings.add(new DeviceManager.Reading("group" + i, "device", i, i));
+        }
+
+        manager.tell(new DeviceManager.RecordTemperatureBatch(1L, readings, true), producer.getRef());
+        assertEquals(8, producer.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class).requestIds.length);
+        IngestionMetrics.get(system).register(null).add(3);
+
+        // from the shard that received the batch, the collector is gone by then
+        assertTrue(producer.expectMsgClass(DeviceManager.SlowDown.class).droppedReadings >= 3);
+        producer.expectNoMessage(Duration.ofMillis(300));
+    }
+
+    @Test
+    public void shardGroupsAndGatherTheirLists() {
+        TestKit probe = new TestKit(system);
+        ActorRef act = system.actorOf(DeviceManager.shardedProps(4, IotSettings.defaults()));
+
+        List<DeviceManager.Reading> readings = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            act.tell(new DeviceManager.RequestTrackDevice("group" + i, "device"), probe.getRef());
+            probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+            readings.add(new DeviceManager.Reading("group" + i, "device", i, i));
+        }
+
+        // the same group always lands on the same shard
+        act.tell(new DeviceManager.RequestTrackDevice("group0", "device"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        act.tell(new DeviceManager.RequestGroupIdList(0L), probe.getRef());
+        DeviceManager.ReplyGroupIdList reply = probe.expectMsgClass(DeviceManager.ReplyGroupIdList.class);
+        assertEquals(0L, reply.requestId);
+        assertEquals(
+                Stream.of("group0", "group1", "group2", "group3", "group4", "group5", "group6", "group7")
+                        .collect(Collectors.toSet()),
+                reply.ids);
+
+        act.tell(new DeviceManager.RequestGroupActorList(1L), probe.getRef());
+        DeviceManager.ReplyGroupActorList actors = probe.expectMsgClass(DeviceManager.ReplyGroupActorList.class);
+        assertEquals(1L, actors.requestId);
+        assertEquals(8, actors.actors.size());
+
+        // a batch over groups of every shard is still acknowledged once
+        act.tell(new DeviceManager.RecordTemperatureBatch(2L, readings), probe.getRef());
+        DeviceManager.TemperatureBatchRecorded ack = probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class);
+        assertEquals(2L, ack.batchId);
+        long[] accepted = ack.requestIds.clone();
+        Arrays.sort(accepted);
+        assertArrayEquals(new long[] {0L, 1L, 2L, 3L, 4L, 5L, 6L, 7L}, accepted);
+        probe.expectNoMessage();
+    }
+
+    @Test
+    public void recoverGroupsDevicesAndReadingsFromTheJournal() throws Exception {
+        TestKit probe = new TestKit(system);
+        Path directory = Files.createTempDirectory("iot-journal");
+        IotSettings settings = IotSettings.defaults()
+                .withJournal(directory.toString(), FiniteDuration.create(10, TimeUnit.MILLISECONDS), 1000);
+
+        ActorRef manager = system.actorOf(DeviceManager.props(settings));
+        for (String[] ids : new String[][] {{"group1", "device1"}, {"group1", "device2"}, {"group2", "device3"}}) {
+            manager.tell(new DeviceManager.RequestTrackDevice(ids[0], ids[1]), probe.getRef());
+            probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        }
+        manager.tell(new DeviceManager.DeviceEnvelope("group1", "device1", new Device.RecordTemperature(1L, 1.0)), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+        manager.tell(new DeviceManager.DeviceEnvelope("group2", "device3", new Device.RecordTemperature(2L, 3.0)), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+
+        // three registrations of 18 bytes and two readings of 26 bytes, written after the flush interval
+        probe.awaitAssert(() -> {
+            try {
+                assertEquals(3 * 18 + 2 * 26, Files.size(directory.resolve(DeviceJournal.JOURNAL)));
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            return null;
+        });
+        probe.watch(manager);
+        manager.tell(PoisonPill.getInstance(), ActorRef.noSender());
+        probe.expectTerminated(manager);
+
+        ActorRef recovered = system.actorOf(DeviceManager.props(settings));
+        assertEquals(new DeviceGroup.Temperature(1.0), allTemperatures(probe, recovered, "group1").get("device1"));
+        assertEquals(DeviceGroup.TemperatureNotAvailable.INSTANCE, allTemperatures(probe, recovered, "group1").get("device2"));
+        assertEquals(new DeviceGroup.Temperature(3.0), allTemperatures(probe, recovered, "group2").get("device3"));
+
+        // recovered devices keep journaling
+        recovered.tell(new DeviceManager.DeviceEnvelope("group1", "device2", new Device.RecordTemperature(3L, 2.0)), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+        assertEquals(new DeviceGroup.Temperature(2.0), allTemperatures(probe, recovered, "group1").get("device2"));
+    }
+
+    @Test
+    public void snapshotTheJournalAndRecoverBoth() throws Exception {
+        TestKit probe = new TestKit(system);
+        Path directory = Files.createTempDirectory("iot-journal");
+        IotSettings settings = IotSettings.defaults()
+                .withJournal(directory.toString(), FiniteDuration.create(1, TimeUnit.SECONDS), 3);
+
+        ActorRef journal = system.actorOf(DeviceJournal.props(directory, DeviceJournal.recover(directory), settings));
+        journal.tell(new DeviceJournal.Registered("group1", "device1"), ActorRef.noSender());
+        journal.tell(new DeviceJournal.Registered("group1", "device2"), ActorRef.noSender());
+        journal.tell(new DeviceJournal.Recorded("group1", "device1", 1.0), ActorRef.noSender());
+        // the snapshot was taken, these two are only in the journal
+        journal.tell(new DeviceJournal.Recorded("group1", "device2", 2.0), ActorRef.noSender());
+        journal.tell(new DeviceJournal.Removed("group1", "device1"), ActorRef.noSender());
+        probe.watch(journal);
+        journal.tell(PoisonPill.getInstance(), ActorRef.noSender());
+        probe.expectTerminated(journal);
+
+        assertTrue(Files.exists(directory.resolve(DeviceJournal.SNAPSHOT)));
+        Map<String, DeviceTable> state = DeviceJournal.recover(directory);
+        assertEquals(1, state.size());
+        assertEquals(1, state.get("group1").latestByDeviceId().size());
+        assertEquals(Double.valueOf(2.0), state.get("group1").latestByDeviceId().get("device2"));
+        assertEquals("iot-system.dispatchers.persistence", DeviceJournal.props(directory, state, settings).dispatcher());
+    }
+
+    @Test
+    public void refuseAJournalWrittenByAnotherNumberOfShards() throws Exception {
+        TestKit probe = new TestKit(system);
+        Path directory = Files.createTempDirectory("iot-journal");
+        IotSettings settings = IotSettings.defaults()
+                .withJournal(directory.toString(), FiniteDuration.create(10, TimeUnit.MILLISECONDS), 1000);
+
+        ActorRef manager = system.actorOf(DeviceManager.shardedProps(2, settings));
+        manager.tell(new DeviceManager.RequestTrackDevice("group1", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        probe.watch(manager);
+        system.stop(manager);
+        probe.expectTerminated(manager);
+
+        ActorRef resharded = system.actorOf(DeviceManager.shardedProps(3, settings));
+        probe.watch(resharded);
+        probe.expectTerminated(resharded);
+
+        ActorRef restarted = system.actorOf(DeviceManager.shardedProps(2, settings));
+        assertEquals(DeviceGroup.TemperatureNotAvailable.INSTANCE, allTemperatures(probe, restarted, "group1").get("device1"));
+    }
+
+    @Test
+    public void registerAnInventoryFileWithOneMessagePerGroup() throws Exception {
+        TestKit probe = new TestKit(system);
+        Path inventory = Files.createTempFile("iot-inventory", ".csv");
+        Files.write(inventory, Arrays.asList(
+                "# groupId,deviceId",
+                "group1,device1",
+                "group2,device1",
+                "",
+                "group1,device2"));
+
+        Map<String, List<String>> devices = DeviceInventory.read(inventory);
+        assertEquals(Arrays.asList("group1", "group2"), new ArrayList<>(devices.keySet()));
+        assertEquals(Arrays.asList("device1", "device2"), devices.get("group1"));
+
+        ActorRef manager = system.actorOf(DeviceManager.shardedProps(2, IotSettings.defaults()));
+        int added = DeviceInventory.register(manager, inventory, Duration.ofSeconds(3)).toCompletableFuture().get();
+        assertEquals(3, added);
+        assertEquals(0, (int) DeviceInventory.register(manager, inventory, Duration.ofSeconds(3)).toCompletableFuture().get());
+
+        manager.tell(new DeviceManager.DeviceEnvelope("group1", "device2", new Device.RecordTemperature(1L, 2.0)), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+        assertEquals(new DeviceGroup.Temperature(2.0), allTemperatures(probe, manager, "group1").get("device2"));
+        assertEquals(DeviceGroup.TemperatureNotAvailable.INSTANCE, allTemperatures(probe, manager, "group2").get("device1"));
+    }
+
+    private static Map<String, DeviceGroup.TemperatureReading> allTemperatures(TestKit probe, ActorRef manager, String groupId) {
+        manager.tell(new DeviceManager.RequestGroupActorList(0L), probe.getRef());
+        ActorRef group = probe.expectMsgClass(DeviceManager.ReplyGroupActorList.class).actors.stream()
+                .filter(g -> g.path().name().equals("group-" + groupId))
+                .findFirst().get();
+        group.tell(new DeviceGroup.RequestAllTemperatures(0L), probe.getRef());
+        return probe.expectMsgClass(DeviceGroup.ReplyAllTemperatures.class).temperatures;
+    }
 }
@@ -10,10 +10,10 @@ import scala.concurrent.duration.FiniteDuration;
 import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Optional;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 public class QueryTest {
 
@@ -53,8 +53,8 @@ public class QueryTest {
         //
         // simulating RespondTemperature replies from placebos (device 1 and 2)
         //
-        queryActor.tell(new Device.RespondTemperature(0L, Optional.of(1d)), device1.getRef());
-        queryActor.tell(new Device.RespondTemperature(0L, Optional.of(2d)), device2.getRef());
+        queryActor.tell(new Device.RespondTemperature(0L, 1d), device1.getRef());
+        queryActor.tell(new Device.RespondTemperature(0L, 2d), device2.getRef());
 
         DeviceGroup.ReplyAllTemperatures reply = requester.expectMsgClass(DeviceGroup.ReplyAllTemperatures.class);
         assertEquals(1L, reply.requestId);
@@ -86,8 +86,8 @@ public class QueryTest {
         assertEquals(0L, device1.expectMsgClass(Device.ReadTemperature.class).requestId);
         assertEquals(0L, device2.expectMsgClass(Device.ReadTemperature.class).requestId);
 
-        queryActor.tell(new Device.RespondTemperature(0L, Optional.empty()), device1.getRef());
-        queryActor.tell(new Device.RespondTemperature(0L, Optional.of(2d)), device2.getRef());
+        queryActor.tell(new Device.RespondTemperature(0L, Device.NO_READING), device1.getRef());
+        queryActor.tell(new Device.RespondTemperature(0L, 2d), device2.getRef());
 
         DeviceGroup.ReplyAllTemperatures reply = requester.expectMsgClass(DeviceGroup.ReplyAllTemperatures.class);
         assertEquals(1L, reply.requestId);
@@ -115,7 +115,7 @@ public class QueryTest {
         assertEquals(0L, device1.expectMsgClass(Device.ReadTemperature.class).requestId);
         assertEquals(0L, device2.expectMsgClass(Device.ReadTemperature.class).requestId);
 
-        queryActor.tell(new Device.RespondTemperature(0L, Optional.of(1d)), device1.getRef());
+        queryActor.tell(new Device.RespondTemperature(0L, 1d), device1.getRef());
         device2.getRef().tell(PoisonPill.getInstance(), ActorRef.noSender());
 
         DeviceGroup.ReplyAllTemperatures reply = requester.expectMsgClass(DeviceGroup.ReplyAllTemperatures.class);
@@ -144,8 +144,8 @@ public class QueryTest {
         assertEquals(0L, device1.expectMsgClass(Device.ReadTemperature.class).requestId);
         assertEquals(0L, device2.expectMsgClass(Device.ReadTemperature.class).requestId);
 
-        queryActor.tell(new Device.RespondTemperature(0L, Optional.of(1d)), device1.getRef());
-        queryActor.tell(new Device.RespondTemperature(0L, Optional.of(2d)), device2.getRef());
+        queryActor.tell(new Device.RespondTemperature(0L, 1d), device1.getRef());
+        queryActor.tell(new Device.RespondTemperature(0L, 2d), device2.getRef());
         device2.getRef().tell(PoisonPill.getInstance(), ActorRef.noSender());
 
         DeviceGroup.ReplyAllTemperatures reply = requester.expectMsgClass(DeviceGroup.ReplyAllTemperatures.class);
@@ -174,7 +174,7 @@ public class QueryTest {
         assertEquals(0L, device1.expectMsgClass(Device.ReadTemperature.class).requestId);
         assertEquals(0L, device2.expectMsgClass(Device.ReadTemperature.class).requestId);
 
-        queryActor.tell(new Device.RespondTemperature(0L, Optional.of(1d)), device1.getRef());
+        queryActor.tell(new Device.RespondTemperature(0L, 1d), device1.getRef());
 
         DeviceGroup.ReplyAllTemperatures reply = requester.expectMsgClass(
                 Duration.ofSeconds(5), DeviceGroup.ReplyAllTemperatures.class);
@@ -186,5 +186,83 @@ public class QueryTest {
         assertEquals(expectedTemperatures, reply.temperatures);
     }
 
+    @Test
+    public void replyRightAwayWhenThereIsNoDevice() {
+        TestKit requester = new TestKit(system);
 
+        system.actorOf(
+                DeviceGroupQuery.props(
+                        new HashMap<>(), 1L, requester.getRef(), new FiniteDuration(3, TimeUnit.SECONDS)));
+
+        DeviceGroup.ReplyAllTemperatures reply = requester.expectMsgClass(
+                Duration.ofMillis(500), DeviceGroup.ReplyAllTemperatures.class);
+        assertEquals(1L, reply.requestId);
+        assertEquals(new HashMap<>(), reply.temperatures);
+    }
+
+    @Test
+    public void replyOnceTheQuorumAnsweredAndFollowUpWithTheLateDevices() {
+        TestKit requester = new TestKit(system);
+        TestKit device1 = new TestKit(system);
+        TestKit device2 = new TestKit(system);
+        TestKit device3 = new TestKit(system);
+
+        Map<ActorRef, String> actorToDeviceId = new HashMap<>();
+        actorToDeviceId.put(device1.getRef(), "device1");
+        actorToDeviceId.put(device2.getRef(), "device2");
+        actorToDeviceId.put(device3.getRef(), "device3");
+
+        DeviceGroup.RequestAllTemperatures request = new DeviceGroup.RequestAllTemperatures(
+                1L, new FiniteDuration(1, TimeUnit.SECONDS), 0.6, null, true);
+        ActorRef queryActor = system.actorOf(DeviceGroupQuery.props(
+                actorToDeviceId, new HashMap<>(), request, requester.getRef(), IotSettings.defaults()));
+
+        queryActor.tell(new Device.RespondTemperature(0L, 1d), device1.getRef());
+        requester.expectNoMessage(Duration.ofMillis(100));
+        queryActor.tell(new Device.RespondTemperature(0L, 2d), device2.getRef());
+
+        // two thirds answered, above the quorum
+        DeviceGroup.ReplyAllTemperatures partial = requester.expectMsgClass(DeviceGroup.ReplyAllTemperatures.class);
+        assertEquals(1L, partial.requestId);
+        assertFalse(partial.complete);
+        assertEquals(2, partial.temperatures.size());
+
+        // the slow device times out, and comes alone in the follow-up
+        DeviceGroup.ReplyLateTemperatures late = requester.expectMsgClass(DeviceGroup.ReplyLateTemperatures.class);
+        assertEquals(1L, late.requestId);
+        assertEquals(1, late.temperatures.size());
+        assertEquals(DeviceGroup.DeviceTimedOut.INSTANCE, late.temperatures.get("device3"));
+    }
+
+    @Test
+    public void replyPartiallyAtTheLatencyTarget() {
+        TestKit requester = new TestKit(system);
+        TestKit device1 = new TestKit(system);
+        TestKit device2 = new TestKit(system);
+
+        Map<ActorRef, String> actorToDeviceId = new HashMap<>();
+        actorToDeviceId.put(device1.getRef(), "device1");
+        actorToDeviceId.put(device2.getRef(), "device2");
+        Map<String, DeviceGroup.TemperatureReading> answered = new HashMap<>();
+        answered.put("device3", new DeviceGroup.Temperature(3d));
+
+        DeviceGroup.RequestAllTemperatures request = new DeviceGroup.RequestAllTemperatures(
+                1L, new FiniteDuration(10, TimeUnit.SECONDS), 1.0, new FiniteDuration(200, TimeUnit.MILLISECONDS), false);
+        ActorRef queryActor = system.actorOf(DeviceGroupQuery.props(
+                actorToDeviceId, answered, request, requester.getRef(), IotSettings.defaults()));
+        requester.watch(queryActor);
+
+        queryActor.tell(new Device.RespondTemperature(0L, 1d), device1.getRef());
+
+        DeviceGroup.ReplyAllTemperatures partial = requester.expectMsgClass(
+                Duration.ofSeconds(1), DeviceGroup.ReplyAllTemperatures.class);
+        assertFalse(partial.complete);
+        Map<String, DeviceGroup.TemperatureReading> expectedTemperatures = new HashMap<>();
+        expectedTemperatures.put("device1", new DeviceGroup.Temperature(1d));
+        expectedTemperatures.put("device3", new DeviceGroup.Temperature(3d));
+        assertEquals(expectedTemperatures, partial.temperatures);
+
+        // without a follow-up, the query is over
+        requester.expectTerminated(queryActor);
+    }
 }